@@ -0,0 +1,76 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+
+/**
+ * The graphs the benchmarks search, as directories holding a city.dat and an edge.dat in the format Search reads.
+ */
+final class Fixtures {
+
+    private Fixtures(){
+    }
+
+    /**
+     * Get the directory with the data files shipped with proj1.
+     * @return The directory.
+     */
+    static Path shipped(){
+        return Paths.get(System.getProperty("bench.data", "../proj1"));
+    }
+
+    /**
+     * Get the directory with a synthetic graph, generating it with proj1's GraphGenerator if it does not exist yet:
+     * a grid road network over the continental United States where every city can reach every other one, and the
+     * same size always generates the same graph.
+     * @param size The number of cities.
+     * @return The directory.
+     * @throws Exception If the generator can't be found or the graph can't be written.
+     */
+    static Path synthetic(int size) throws Exception {
+        Path directory = Paths.get(System.getProperty("bench.fixtures", "build/fixtures"), "grid-" + size);
+        if (Files.exists(directory)) return directory;
+
+        // Generated into a temporary directory first, so that a generation that dies halfway is not mistaken for a
+        // finished one
+        Path generating = directory.resolveSibling(directory.getFileName() + ".tmp");
+        String[] args = {"-type", "grid", "-cities", String.valueOf(size), "-degree", "5", "-seed",
+            String.valueOf(size), generating.toString()};
+        Method main = Class.forName("GraphGenerator").getMethod("main", String[].class);
+        main.invoke(null, (Object) args);
+        Files.move(generating, directory);
+        return directory;
+    }
+
+    /**
+     * Count the cities in a graph.
+     * @param directory The directory with the graph.
+     * @return The number of cities.
+     * @throws IOException If the cities can't be read.
+     */
+    static int size(Path directory) throws IOException {
+        try (Stream<String> lines = Files.lines(directory.resolve("city.dat"), StandardCharsets.UTF_8)) {
+            return (int) lines.filter(line -> !line.trim().isEmpty()).count();
+        }
+    }
+
+    /**
+     * Set up an algorithm on a graph. Search lives in the default package, which can't be imported, so its
+     * {@code router} hook is looked up reflectively; the function it returns is called directly.
+     * @param algorithm The name of the algorithm, as it is asked for in server mode.
+     * @param directory The directory with the graph.
+     * @return A function from a query, the start id in the high half and the end id in the low half, to its results.
+     * @throws Exception If the hook can't be found or the graph can't be loaded.
+     */
+    @SuppressWarnings("unchecked")
+    static LongFunction<Object> router(String algorithm, Path directory) throws Exception {
+        Method router = Class.forName("Search").getMethod("router", String.class, Path.class);
+        return (LongFunction<Object>) router.invoke(null, algorithm, directory);
+    }
+}
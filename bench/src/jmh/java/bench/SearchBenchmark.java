@@ -0,0 +1,61 @@
+package bench;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.LongFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Route queries between random pairs of cities, for every algorithm on every graph. Throughput and average latency
+ * come from the benchmark modes, the allocation rate from the GC profiler; both are set up in build.gradle. To run
+ * only some of the combinations, pass e.g. {@code -p graph=shipped,1000 -p algorithm=astar} to the benchmarks jar.
+ */
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    /**
+     * How many different queries are cycled through. A power of two, so the next one is picked with a mask.
+     */
+    private static final int QUERIES = 1024;
+
+    /**
+     * The graph: "shipped" for the data files shipped with proj1, or the number of cities in a synthetic graph.
+     */
+    @Param({"shipped", "1000", "10000", "100000", "1000000", "10000000"})
+    public String graph;
+
+    /**
+     * The algorithm. Contraction hierarchies are left out by default because building one for the big grids takes
+     * far longer than the benchmarks themselves; pass {@code -p algorithm=ch} to include them. The hierarchy is saved
+     * next to the graph, so it is only built once.
+     */
+    @Param({"bfs", "dfs", "astar", "bibfs", "biastar"})
+    public String algorithm;
+
+    private LongFunction<Object> router;
+    private final long[] queries = new long[QUERIES];
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        Path directory = this.graph.equals("shipped") ? Fixtures.shipped()
+            : Fixtures.synthetic(Integer.parseInt(this.graph));
+        this.router = Fixtures.router(this.algorithm, directory);
+
+        int size = Fixtures.size(directory);
+        Random random = new Random(0);
+        for (int i = 0; i < QUERIES; i++) {
+            this.queries[i] = (long) random.nextInt(size) << 32 | random.nextInt(size);
+        }
+    }
+
+    @Benchmark
+    public Object route() {
+        return this.router.apply(this.queries[this.next++ & (QUERIES - 1)]);
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Writes synthetic graphs of cities in the format Search reads, so the algorithms can be tried on graphs much bigger
+ * than the shipped data.
+ * <ul>
+ *     <li>{@code geometric}: cities scattered at random, each one joined to its nearest neighbors.</li>
+ *     <li>{@code grid}: a road network, cities on a jittered square grid joined to the ones beside them, with a
+ *     diagonal now and then.</li>
+ *     <li>{@code scalefree}: cities scattered at random and joined by preferential attachment, so that a few hubs
+ *     end up with most of the routes.</li>
+ * </ul>
+ * The same options always generate the same graph.
+ */
+public class GraphGenerator {
+
+    private static final String USAGE =
+        "Usage: java GraphGenerator [-type geometric|grid|scalefree] [-cities N] [-degree D] [-seed S] directory";
+
+    static final List<String> TYPES = Arrays.asList("geometric", "grid", "scalefree");
+
+    // The cities are laid over roughly the continental United States, like the shipped ones.
+    private static final double SOUTH = 25;
+    private static final double NORTH = 50;
+    private static final double EAST = 70;
+    private static final double WEST = 125;
+
+    private final int cities;
+    private final int degree;
+    private final SplittableRandom random;
+    private final float[] latitudes;
+    private final float[] longitudes;
+
+    /**
+     * @param cities The number of cities.
+     * @param degree The average number of routes out of each city.
+     * @param seed Seeds the random choices.
+     */
+    GraphGenerator(int cities, int degree, long seed){
+        this.cities = cities;
+        this.degree = degree;
+        this.random = new SplittableRandom(seed);
+        this.latitudes = new float[cities];
+        this.longitudes = new float[cities];
+    }
+
+    public static void main(String[] args) throws IOException {
+        String type = "geometric";
+        int cities = 1_000_000;
+        int degree = 4;
+        long seed = 0;
+        Path directory = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-type":
+                    type = Search.option(args, ++i);
+                    if (!TYPES.contains(type)) usage();
+                    break;
+                case "-cities":
+                    cities = Integer.parseInt(Search.option(args, ++i));
+                    break;
+                case "-degree":
+                    degree = Integer.parseInt(Search.option(args, ++i));
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(Search.option(args, ++i));
+                    break;
+                default:
+                    if (directory != null) usage();
+                    directory = Paths.get(args[i]);
+            }
+        }
+        if (directory == null || cities < 1 || degree < 1) usage();
+
+        Files.createDirectories(directory);
+        GraphGenerator generator = new GraphGenerator(cities, degree, seed);
+        try (Writer routes = Files.newBufferedWriter(directory.resolve("edge.dat"), StandardCharsets.UTF_8)) {
+            switch (type) {
+                case "geometric":
+                    generator.geometric(routes);
+                    break;
+                case "grid":
+                    generator.grid(routes);
+                    break;
+                case "scalefree":
+                    generator.scaleFree(routes);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        try (Writer out = Files.newBufferedWriter(directory.resolve("city.dat"), StandardCharsets.UTF_8)) {
+            generator.writeCities(out);
+        }
+    }
+
+    private static void usage(){
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    /**
+     * Scatter the cities at random and join each one to its {@code degree / 2} nearest neighbors, which gives every
+     * city about {@code degree} routes once the routes are made two-way. The neighbors are found by bucketing the
+     * cities into cells that hold about {@code degree} cities each and only looking in the surrounding cells, so a
+     * city in a sparse spot may get fewer.
+     * @param out Where to write the routes.
+     * @throws IOException If they can't be written.
+     */
+    void geometric(Writer out) throws IOException {
+        this.scatter();
+        int nearest = Math.max(1, this.degree / 2);
+
+        // Bucket the cities into cells, as a counting sort by cell
+        int side = Math.max(1, (int) Math.sqrt((double) this.cities / this.degree));
+        int[] cellOf = new int[this.cities];
+        int[] starts = new int[side * side + 1];
+        for (int i = 0; i < this.cities; i++) {
+            int row = Math.min(side - 1, (int) ((this.latitudes[i] - SOUTH) / (NORTH - SOUTH) * side));
+            int column = Math.min(side - 1, (int) ((this.longitudes[i] - EAST) / (WEST - EAST) * side));
+            cellOf[i] = row * side + column;
+            starts[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < side * side; c++) starts[c + 1] += starts[c];
+        int[] members = new int[this.cities];
+        int[] fill = Arrays.copyOf(starts, side * side);
+        int[] slot = new int[this.cities];
+        for (int i = 0; i < this.cities; i++) {
+            slot[i] = fill[cellOf[i]]++;
+            members[slot[i]] = i;
+        }
+
+        // The coordinates again in cell order, so the cells along a row are one run that the metric measures at once
+        float[] cellLatitudes = new float[this.cities];
+        float[] cellLongitudes = new float[this.cities];
+        for (int m = 0; m < this.cities; m++) {
+            cellLatitudes[m] = this.latitudes[members[m]];
+            cellLongitudes[m] = this.longitudes[members[m]];
+        }
+        Search.Distances metric = Search.distances("planar", cellLatitudes, cellLongitudes);
+
+        int[] best = new int[nearest];
+        float[] bestDistance = new float[nearest];
+        float[] distances = new float[this.cities];
+        for (int i = 0; i < this.cities; i++) {
+            int found = 0;
+            int row = cellOf[i] / side;
+            int column = cellOf[i] % side;
+            for (int r = Math.max(0, row - 1); r <= Math.min(side - 1, row + 1); r++) {
+                int first = starts[r * side + Math.max(0, column - 1)];
+                int last = starts[r * side + Math.min(side - 1, column + 1) + 1];
+                metric.distances(slot[i], first, last, distances);
+                for (int m = first; m < last; m++) {
+                    int j = members[m];
+                    if (j == i) continue;
+                    float d = distances[m - first];
+                    if (found == nearest && d >= bestDistance[found - 1]) continue;
+
+                    // Insertion into the sorted list of the nearest so far
+                    int k = found == nearest ? found - 1 : found++;
+                    for (; k > 0 && bestDistance[k - 1] > d; k--) {
+                        best[k] = best[k - 1];
+                        bestDistance[k] = bestDistance[k - 1];
+                    }
+                    best[k] = j;
+                    bestDistance[k] = d;
+                }
+            }
+            // Both ends may pick each other; the loader drops the duplicate.
+            for (int k = 0; k < found; k++) route(out, i, best[k]);
+        }
+    }
+
+    /**
+     * Lay the cities out on a jittered square grid, filled row by row. Each link to the city to the right and the
+     * city below is kept with probability {@code degree / 4}, and above a degree of four the remainder is made up
+     * with diagonals. Links along the first row and the first column are never dropped, so that there is always a way
+     * across the whole grid.
+     * @param out Where to write the routes.
+     * @throws IOException If they can't be written.
+     */
+    void grid(Writer out) throws IOException {
+        int side = (int) Math.ceil(Math.sqrt(this.cities));
+        for (int i = 0; i < this.cities; i++) {
+            this.latitudes[i] = (float) (SOUTH + (i / side + this.random.nextDouble()) * (NORTH - SOUTH) / side);
+            this.longitudes[i] = (float) (EAST + (i % side + this.random.nextDouble()) * (WEST - EAST) / side);
+        }
+
+        double straight = Math.min(1, this.degree / 4.0);
+        double diagonal = Math.max(0, (this.degree - 4) / 4.0);
+        for (int i = 0; i < this.cities; i++) {
+            int column = i % side;
+            boolean right = column + 1 < side && i + 1 < this.cities;
+            boolean down = i + side < this.cities;
+            boolean left = column > 0 && down;
+            if (right && (i / side == 0 || this.random.nextDouble() < straight)) route(out, i, i + 1);
+            if (down && (column == 0 || this.random.nextDouble() < straight)) route(out, i, i + side);
+            if (right && i + side + 1 < this.cities && this.random.nextDouble() < diagonal) {
+                route(out, i, i + side + 1);
+            }
+            if (left && this.random.nextDouble() < diagonal) route(out, i, i + side - 1);
+        }
+    }
+
+    /**
+     * Scatter the cities at random and join them by preferential attachment (Barabasi-Albert): the cities arrive one
+     * at a time and each one links to {@code degree / 2} of the cities already there, picked with probability
+     * proportional to how many routes they have. Picking a random end of a random route so far does exactly that.
+     * @param out Where to write the routes.
+     * @throws IOException If they can't be written.
+     */
+    void scaleFree(Writer out) throws IOException {
+        this.scatter();
+        int links = Math.max(1, this.degree / 2);
+        int[] ends = new int[2 * links * this.cities];
+        int size = 0;
+        for (int i = 1; i < this.cities; i++) {
+            for (int k = 0; k < links; k++) {
+                // Early on there are too few routes to pick from, so link to any city already there.
+                int j = size == 0 || k >= i ? this.random.nextInt(i) : ends[this.random.nextInt(size)];
+                if (j == i) j = this.random.nextInt(i);
+                route(out, i, j);
+                ends[size++] = i;
+                ends[size++] = j;
+            }
+        }
+    }
+
+    private void scatter(){
+        for (int i = 0; i < this.cities; i++) {
+            this.latitudes[i] = (float) (SOUTH + this.random.nextDouble() * (NORTH - SOUTH));
+            this.longitudes[i] = (float) (EAST + this.random.nextDouble() * (WEST - EAST));
+        }
+    }
+
+    private static void route(Writer out, int from, int to) throws IOException {
+        out.write(name(from));
+        out.write('\t');
+        out.write(name(to));
+        out.write('\n');
+    }
+
+    private static String name(int city){
+        return "c" + city;
+    }
+
+    /**
+     * Write the cities, with four decimal places of latitude and longitude.
+     * @param out Where to write them.
+     * @throws IOException If they can't be written.
+     */
+    void writeCities(Writer out) throws IOException {
+        for (int i = 0; i < this.cities; i++) {
+            out.write(name(i));
+            out.write("\tXX\t");
+            coordinate(out, this.latitudes[i]);
+            out.write('\t');
+            coordinate(out, this.longitudes[i]);
+            out.write('\n');
+        }
+    }
+
+    // String.format is far too slow for millions of lines, and depends on the locale.
+    private static void coordinate(Writer out, float value) throws IOException {
+        long scaled = Math.round(value * 10000.0);
+        String fraction = Long.toString(scaled % 10000);
+        out.write(Long.toString(scaled / 10000));
+        out.write('.');
+        for (int pad = fraction.length(); pad < 4; pad++) out.write('0');
+        out.write(fraction);
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Replays a workload of route queries through the search algorithms, from several threads at once, and reports the
+ * throughput and the latency percentiles. The graph and the algorithms are set up exactly as Search sets them up, from
+ * the same options, so the numbers are the ones a server over the same data would see minus the network.
+ */
+public class LoadTest {
+
+    private static final String USAGE =
+        "Usage: java LoadTest [-algorithms a,b,...] [-queries N | -workload file] [-seed S] [Search options]\n" +
+        "The workload file holds one query per two lines, start then end, like the input of Search -batch.\n" +
+        "Search options: -data, -snapshot, -landmarks, -ch, -cache, -threads, -warmup";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> algorithms = Arrays.asList("astar");
+        int count = 10000;
+        Path workload = null;
+        long seed = 0;
+        List<String> searchArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-algorithms":
+                    algorithms = Arrays.asList(Search.option(args, ++i).split(","));
+                    break;
+                case "-queries":
+                    count = Integer.parseInt(Search.option(args, ++i));
+                    break;
+                case "-workload":
+                    workload = Paths.get(Search.option(args, ++i));
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(Search.option(args, ++i));
+                    break;
+                default:
+                    searchArgs.add(args[i]);
+            }
+        }
+        Search.Options options = new Search.Options(searchArgs.toArray(new String[0]));
+        if (!options.files.isEmpty() || count < 1) usage();
+
+        Search.Routes routes = new Search.Routes(options);
+        int[] queries = workload == null ? randomQueries(routes, count, seed) : readWorkload(routes, workload);
+        if (queries.length == 0) {
+            System.err.println("No queries to run.");
+            System.exit(1);
+        }
+
+        for (String name : algorithms) {
+            Search.Router router = routes.router(name);
+            if (router == null) {
+                System.err.println("No such algorithm: (" + name + ")");
+                System.exit(1);
+            }
+            // Warm up on the same workload, so that the JIT has compiled the search before it is timed
+            for (int i = 0; i < options.warmup; i++) {
+                int q = 2 * (i % (queries.length / 2));
+                router.route(queries[q], queries[q + 1]);
+            }
+            System.out.println(run(router, queries, options.threads));
+        }
+    }
+
+    private static void usage(){
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    /**
+     * Pick random pairs of cities.
+     * @return The ids of the start and end of each query, one after the other.
+     */
+    static int[] randomQueries(Search.Routes routes, int count, long seed){
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] queries = new int[2 * count];
+        for (int i = 0; i < queries.length; i++) queries[i] = random.nextInt(routes.size());
+        return queries;
+    }
+
+    /**
+     * Read a workload file. Queries naming a city that does not exist are reported and skipped.
+     * @return The ids of the start and end of each query, one after the other.
+     * @throws IOException If the file can't be read.
+     */
+    static int[] readWorkload(Search.Routes routes, Path file) throws IOException {
+        IntStream.Builder queries = IntStream.builder();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            int line = 0;
+            for (String start = in.readLine(), end = in.readLine(); end != null;
+                 start = in.readLine(), end = in.readLine()) {
+                line += 2;
+                int from = routes.id(start);
+                int to = routes.id(end);
+                if (from < 0 || to < 0) {
+                    System.err.println(file + ":" + (from < 0 ? line - 1 : line) + ": no such city: ("
+                        + (from < 0 ? start : end) + ")");
+                    continue;
+                }
+                queries.add(from);
+                queries.add(to);
+            }
+        }
+        return queries.build().toArray();
+    }
+
+    /**
+     * Run every query once, spread over a number of threads, timing each one.
+     * @return One line with the throughput and the latency percentiles.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    static String run(Search.Router router, int[] queries, int threads) throws InterruptedException {
+        int count = queries.length / 2;
+        long[] latencies = new long[count];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger unreachable = new AtomicInteger();
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int q = next.getAndIncrement(); q < count; q = next.getAndIncrement()) {
+                    long began = System.nanoTime();
+                    boolean found = router.route(queries[2 * q], queries[2 * q + 1]);
+                    latencies[q] = System.nanoTime() - began;
+                    if (!found) unreachable.incrementAndGet();
+                }
+            });
+        }
+        long began = System.nanoTime();
+        for (Thread worker : workers) worker.start();
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - began;
+
+        Arrays.sort(latencies);
+        return String.format("%s: %d queries (%d without a path) on %d threads in %.3f s, %.1f queries/s, "
+                + "latency p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+            router.name(), count, unreachable.get(), threads, elapsed / 1e9, count / (elapsed / 1e9),
+            percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6, latencies[count - 1] / 1e6);
+    }
+
+    /**
+     * @param sorted The latencies, sorted.
+     * @param fraction The percentile, as a fraction.
+     * @return The latency that the given fraction of the queries took at most (nearest rank).
+     */
+    private static long percentile(long[] sorted, double fraction){
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
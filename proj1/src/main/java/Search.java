@@ -1,10 +1,45 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongFunction;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
 
 /**
  * Main execution class.
@@ -14,17 +49,162 @@ public class Search {
     private static final String CITIES_FILENAME = "city.dat";
     private static final String ROUTES_FILENAME = "edge.dat";
 
+    private static final String USAGE =
+        "Usage: java Search [-batch] [-threads N] inputFile outputFile\n" +
+        "       java Search -server [-port N] [-threads N] [-warmup N]\n" +
+        "       java Search -compile snapshotFile\n" +
+        "Options: -data directory read city.dat and edge.dat from directory instead of the current one\n" +
+        "         -snapshot file  load the graph from a snapshot made with -compile instead of the data files\n" +
+        "         -offheap        keep the graph in direct buffers outside the heap, for graphs too big for it;\n" +
+        "                         raise -XX:MaxDirectMemorySize, which defaults to the heap size, to fit it\n" +
+        "         -metric name    measure distances as planar (degrees as if flat, the default) or haversine\n" +
+        "                         (great circle); a snapshot keeps the metric it was compiled with\n" +
+        "         -landmarks N    guide A* with N precomputed landmarks as well as the direct distance\n" +
+        "         -ch file        answer \"ch\" queries from the contraction hierarchy in file, building it if\n" +
+        "                         needed\n" +
+        "         -cache N        remember the results of the N most recently asked routes\n" +
+        "         -stats format   report how much work each search took: text (after each report), json (a line per\n" +
+        "                         search) or prometheus (totals per algorithm, at the end or on the \"metrics\"\n" +
+        "                         command)\n" +
+        "         -statsfile file write json and prometheus statistics to file instead of standard error\n" +
+        "         -parallel N     answer \"pastar\" queries with a parallel A* search on N threads\n" +
+        "         -memory N       keep at most N search nodes at once in \"idastar\" and \"smastar\" queries, and\n" +
+        "                         remember at most 2N states (default 100000)\n" +
+        "         -deadline ms    give \"arastar\" queries ms milliseconds to improve on their first path\n" +
+        "                         (default 50)\n" +
+        "         -dynamic N      let server clients add, remove and reweight routes, and answer \"lpa\" queries by\n" +
+        "                         repairing the searches for the N most recent routes asked for\n" +
+        "A city may also be given as latitude,longitude (degrees, longitude west), meaning the city nearest to it.";
+
+    /**
+     * How many batch queries may be in flight (running, or finished and waiting for the ones before them to be written)
+     * at once.
+     */
+    private static final int BATCH_WINDOW = 4096;
+
+    /**
+     * The algorithms that are run, in this order, when no particular algorithm is asked for.
+     */
+    static final List<String> DEFAULT_ALGORITHMS = Arrays.asList("bfs", "dfs", "astar");
+
+    /**
+     * The command line options.
+     */
+    static class Options {
+        boolean batch = false;
+        boolean server = false;
+        int landmarks = 0;
+        Path hierarchyFile = null;
+        Path snapshotFile = null;
+        Path compileFile = null;
+        int cacheSize = 0;
+        String statisticsFormat = null;
+        Path statisticsFile = null;
+        int dynamicPairs = 0;
+        int parallelWorkers = 0;
+        int memoryNodes = 100000;
+        int deadlineMillis = 50;
+        String metric = "planar";
+        boolean offHeap = false;
+        Path dataDirectory = Paths.get("");
+        int port = -1;
+        int warmup = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        final List<String> files = new ArrayList<>();
+
+        Options(String[] args){
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-batch":
+                        this.batch = true;
+                        break;
+                    case "-server":
+                        this.server = true;
+                        break;
+                    case "-port":
+                        this.port = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-threads":
+                        this.threads = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-warmup":
+                        this.warmup = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-landmarks":
+                        this.landmarks = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-ch":
+                        this.hierarchyFile = Paths.get(option(args, ++i));
+                        break;
+                    case "-snapshot":
+                        this.snapshotFile = Paths.get(option(args, ++i));
+                        break;
+                    case "-compile":
+                        this.compileFile = Paths.get(option(args, ++i));
+                        break;
+                    case "-cache":
+                        this.cacheSize = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-stats":
+                        this.statisticsFormat = option(args, ++i);
+                        if (!StatisticsReporter.FORMATS.contains(this.statisticsFormat)) usage();
+                        break;
+                    case "-statsfile":
+                        this.statisticsFile = Paths.get(option(args, ++i));
+                        break;
+                    case "-parallel":
+                        this.parallelWorkers = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-memory":
+                        this.memoryNodes = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-deadline":
+                        this.deadlineMillis = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-offheap":
+                        this.offHeap = true;
+                        break;
+                    case "-metric":
+                        this.metric = option(args, ++i);
+                        if (!Metric.NAMES.contains(this.metric)) usage();
+                        break;
+                    case "-dynamic":
+                        this.dynamicPairs = Integer.parseInt(option(args, ++i));
+                        break;
+                    case "-data":
+                        this.dataDirectory = Paths.get(option(args, ++i));
+                        break;
+                    default:
+                        this.files.add(args[i]);
+                }
+            }
+        }
+    }
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 2){
-            System.err.println("Usage: java Search inputFile outputFile");
+        Options options = new Options(args);
+
+        boolean interactive = !options.server && options.compileFile == null;
+        if (options.files.size() != (interactive ? 2 : 0)){
+            usage();
+        }
+        args = options.files.toArray(new String[0]);
+
+        if (options.dynamicPairs > 0 && (options.hierarchyFile != null || options.landmarks > 0)) {
+            System.err.println("-dynamic can't be combined with -ch or -landmarks, which assume the routes never "
+                + "change.");
             System.exit(1);
         }
 
         // Test that the specified files are available.
         try {
-            Files.newBufferedReader(Paths.get(CITIES_FILENAME));
-            Files.newBufferedReader(Paths.get(ROUTES_FILENAME));
-            if (!args[0].trim().equals("-")) {
+            if (options.snapshotFile == null) {
+                Files.newBufferedReader(options.dataDirectory.resolve(CITIES_FILENAME));
+                Files.newBufferedReader(options.dataDirectory.resolve(ROUTES_FILENAME));
+            } else {
+                Files.newInputStream(options.snapshotFile).close();
+            }
+            if (interactive && !args[0].trim().equals("-")) {
                 Files.newBufferedReader(Paths.get(args[0]));
             }
         } catch (NoSuchFileException e){
@@ -32,321 +212,6294 @@ public class Search {
             System.exit(1);
         }
 
+        if (options.compileFile != null) {
+            compile(options.compileFile, options.dataDirectory, options.metric);
+            return;
+        }
+
         // In the event that we are told to read/write from/to stdin/stdout.
-        if (!args[0].trim().equals("-")) {
+        if (interactive && !args[0].trim().equals("-")) {
             System.setIn(new FileInputStream(args[0]));
         }
 
-        if (!args[1].trim().equals("-")) {
+        if (interactive && !args[1].trim().equals("-")) {
             System.setOut(new PrintStream(args[1]));
         }
 
-        // Build the map of stateSpace (hehe). String -> City, where String is the city name
-        Map<String, City> cities = Files.lines(Paths.get(CITIES_FILENAME))
-            .filter(line -> line.trim().split("\\s+").length == 4)
-            .map(City::new)
-            .collect(Collectors.toMap(City::name, Function.identity()));
-
-        // Build up the neighbors
-        Files.lines(Paths.get(ROUTES_FILENAME)).forEach(line -> {
-            String[] tokens = line.trim().split("\\s+");
-            if (tokens.length != 2) return;
-            cities.get(tokens[0]).neighbors.add(cities.get(tokens[1]));
-            cities.get(tokens[1]).neighbors.add(cities.get(tokens[0]));
-        });
+        RouteCatalog.Loader loader = () -> loadCatalog(options);
+        RouteCache<City> cache = options.cacheSize > 0 ? new RouteCache<>(options.cacheSize) : null;
+        StatisticsReporter reporter = null;
+        if (options.statisticsFormat != null) {
+            SearchStatistics.measureAllocations = true;
+            PrintStream out = options.statisticsFile == null ? System.err
+                : new PrintStream(new FileOutputStream(options.statisticsFile.toFile()), true);
+            reporter = new StatisticsReporter(options.statisticsFormat, out);
+        }
+        StatisticsReporter statistics = reporter;
 
         // Read input from whatever System.in has been set to
         BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
 
+        if (options.server) {
+            QueryPipeline pipeline = new QueryPipeline(options.threads, BATCH_WINDOW);
+            RouteServer routeServer = new RouteServer(loader, cache, statistics, pipeline);
+            routeServer.warmUp(options.warmup);
+            if (options.port < 0) {
+                routeServer.serve(input, new BufferedWriter(new OutputStreamWriter(System.out)));
+            } else {
+                routeServer.listen(options.port);
+            }
+            return;
+        }
+
+        RouteCatalog catalog = cache == null ? loader.load() : loader.load().cached(cache);
+        List<SearchAlgorithm<City>> defaults = catalog.defaults();
+
+        if (options.batch) {
+            Writer output = new BufferedWriter(new OutputStreamWriter(System.out));
+            new QueryPipeline(options.threads, BATCH_WINDOW).run(input, output, 2,
+                lines -> answer(catalog, defaults, lines[0], lines[1], statistics), QueryPipeline::failure);
+            if (cache != null) System.err.println(cache.statistics());
+            if (statistics != null) statistics.finish();
+            return;
+        }
+
         String startName = input.readLine();
         String endName = input.readLine();
 
-        City start = cities.get(startName);
-        City end = cities.get(endName);
-
-        if (start == null){
+        if (catalog.locate(startName) == null){
             System.err.println("No such city: (" + startName + ")");
             System.exit(1);
         }
 
-        if (end == null){
+        if (catalog.locate(endName) == null){
             System.err.println("No such city: (" + endName + ")");
             System.exit(1);
         }
 
-        // Instantiate and execute the algorithms. Print results.
-        SearchAlgorithm<City> bfs = new BreadthFirst<>(new HashSet<>(cities.values()));
-        System.out.println(bfs.execute(start, end).resultsString());
+        // Execute the algorithms. Print results.
+        System.out.print(answer(catalog, defaults, startName, endName, statistics));
+        if (statistics != null) statistics.finish();
+
+    }
+
+    private static void usage(){
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    /**
+     * Get the value of an option that takes one, or print the usage and quit if it is missing.
+     * @param args The command line arguments.
+     * @param i The index of the value.
+     * @return The value.
+     */
+    static String option(String[] args, int i){
+        if (i >= args.length) usage();
+        return args[i];
+    }
+
+    /**
+     * Read the cities and the routes between them from the data files.
+     * @param directory The directory the data files are in.
+     * @param metric The name of the metric to measure distances with.
+     * @return The graph of cities.
+     * @throws IOException If the files can't be read.
+     */
+    static Graph loadGraph(Path directory, String metric) throws IOException {
+        // Build the stateSpace (hehe). Cities get dense ids in the order they appear in the file. Lines that can't be
+        // used are reported and skipped.
+        DataFileParser parser = new DataFileParser(System.err::println);
+        City[] cities = parser.parseCities(directory.resolve(CITIES_FILENAME));
+
+        // Build up the neighbors
+        int[] routes = parser.parseRoutes(directory.resolve(ROUTES_FILENAME), cities);
+
+        return new Graph(cities, routes, metric);
+    }
+
+    /**
+     * Load the graph of cities and set up every algorithm on it.
+     * @param options Where to load the graph from, and how to set up the algorithms.
+     * @return The graph and the algorithms.
+     * @throws IOException If the graph or a precomputed index can't be read.
+     */
+    static RouteCatalog loadCatalog(Options options) throws IOException {
+        CitySpace cities;
+        if (options.snapshotFile != null) {
+            cities = new MappedGraph(options.snapshotFile);
+        } else if (options.offHeap) {
+            cities = new OffHeapGraph(new DataFileParser(System.err::println),
+                options.dataDirectory.resolve(CITIES_FILENAME), options.dataDirectory.resolve(ROUTES_FILENAME),
+                options.metric);
+        } else {
+            cities = loadGraph(options.dataDirectory, options.metric);
+        }
+        if (options.dynamicPairs > 0) cities = new DynamicGraph(cities);
+        Heuristic heuristic = options.landmarks > 0 ? new Landmarks(cities, options.landmarks) : cities::distance;
+
+        // Instantiate the algorithms. They keep no state between executions, so concurrent queries can share them,
+        // and they share each thread's search arrays, which go when the catalog does.
+        SearchContexts contexts = new SearchContexts(cities.size());
+        long budget = options.deadlineMillis * 1_000_000L;
+        Map<String, SearchAlgorithm<City>> algorithms = new LinkedHashMap<>();
+        algorithms.put("bfs", new BreadthFirst<>(cities, contexts));
+        algorithms.put("dfs", new DepthFirst<>(cities, contexts));
+        algorithms.put("astar", new AStar<>(cities, heuristic, contexts));
+        algorithms.put("bibfs", new BidirectionalBreadthFirst<>(cities, contexts));
+        algorithms.put("biastar", new BidirectionalAStar<>(cities, heuristic, contexts));
+        algorithms.put("idastar", new IterativeDeepeningAStar<>(cities, heuristic, options.memoryNodes, contexts));
+        algorithms.put("smastar", new SimplifiedMemoryBoundedAStar<>(cities, heuristic, options.memoryNodes, contexts));
+        algorithms.put("arastar", new AnytimeRepairingAStar<>(cities, heuristic, budget, contexts));
+        if (options.hierarchyFile != null) {
+            ContractionHierarchy hierarchy = loadHierarchy(options.hierarchyFile, cities);
+            algorithms.put("ch", new ContractionHierarchySearch<>(cities, hierarchy, contexts));
+        }
+        if (options.parallelWorkers > 0) {
+            algorithms.put("pastar", new ParallelAStar<>(cities, heuristic, options.parallelWorkers));
+        }
+        if (options.dynamicPairs > 0) {
+            LifelongPlanningAStar<City> lpa = new LifelongPlanningAStar<>(cities, options.dynamicPairs);
+            ((DynamicGraph) cities).listen(lpa::routeChanged);
+            algorithms.put("lpa", lpa);
+        }
+        return new RouteCatalog(cities, algorithms, new SpatialIndex(cities.metric(), cities.size()),
+            new DistanceMatrix(cities, contexts));
+    }
+
+    /**
+     * Set up one of the algorithms on the data files in a directory, for code outside this file, such as the
+     * benchmarks, which can't name the classes in it. A "ch" algorithm keeps its hierarchy in the same directory.
+     * @param algorithm The name of the algorithm, as it is asked for in server mode.
+     * @param directory The directory the data files are in.
+     * @return A function from a query, the id of the start city in the high half and the id of the end city in the low
+     * half, to the results of the search.
+     * @throws IOException If the data files can't be read.
+     */
+    public static LongFunction<Object> router(String algorithm, Path directory) throws IOException {
+        Options options = new Options(new String[0]);
+        options.dataDirectory = directory;
+        if (algorithm.equals("ch")) options.hierarchyFile = directory.resolve("hierarchy.ch");
+
+        RouteCatalog catalog = loadCatalog(options);
+        SearchAlgorithm<City> search = catalog.algorithms.get(algorithm);
+        if (search == null) throw new IllegalArgumentException("No such algorithm: (" + algorithm + ")");
+        StateSpace<City> cities = catalog.cities;
+        return query -> search.execute(cities.state((int) (query >>> 32)), cities.state((int) query));
+    }
+
+    /**
+     * The catalog set up from some options exactly as Search sets it up, with a cache in front of the algorithms if
+     * the options ask for one, for the tools next to this file, which can't name the classes in it.
+     */
+    static class Routes {
+        private final RouteCatalog catalog;
+
+        /**
+         * Load the graph and set up the algorithms.
+         * @param options The options.
+         * @throws IOException If the graph can't be loaded.
+         */
+        Routes(Options options) throws IOException {
+            RouteCatalog catalog = loadCatalog(options);
+            this.catalog = options.cacheSize > 0 ? catalog.cached(new RouteCache<>(options.cacheSize)) : catalog;
+        }
+
+        /**
+         * @return The number of cities.
+         */
+        int size(){
+            return this.catalog.cities.size();
+        }
+
+        /**
+         * @param name The name of a city.
+         * @return Its id, or -1 if there is no city by that name.
+         */
+        int id(String name){
+            City city = this.catalog.cities.state(name);
+            return city == null ? -1 : city.id();
+        }
+
+        /**
+         * @param algorithm The name of an algorithm, as it is asked for in server mode.
+         * @return The algorithm, or null if there is no algorithm by that name.
+         */
+        Router router(String algorithm){
+            SearchAlgorithm<City> search = this.catalog.algorithms.get(algorithm);
+            return search == null ? null : new Router(search, this.catalog.cities);
+        }
+    }
+
+    /**
+     * One of the algorithms in a {@link Routes}, asked by city id.
+     */
+    static class Router {
+        private final SearchAlgorithm<City> algorithm;
+        private final StateSpace<City> cities;
+
+        private Router(SearchAlgorithm<City> algorithm, StateSpace<City> cities){
+            this.algorithm = algorithm;
+            this.cities = cities;
+        }
+
+        String name(){
+            return this.algorithm.getName();
+        }
+
+        /**
+         * Search for a route.
+         * @param start The id of the start city.
+         * @param end The id of the end city.
+         * @return Whether there is one.
+         */
+        boolean route(int start, int end){
+            return this.algorithm.execute(this.cities.state(start), this.cities.state(end)).found();
+        }
+    }
+
+    /**
+     * Measures the distances from one point to a run of others, like {@link Metric#distances}, for the tools next to
+     * this file.
+     */
+    interface Distances {
+        void distances(int from, int start, int end, float[] out);
+    }
+
+    /**
+     * Set up a metric over some points, for the tools next to this file.
+     * @param metric The name of the metric.
+     * @param latitudes The latitudes of the points, in degrees.
+     * @param longitudes The longitudes of the points, in degrees west.
+     * @return Its batch distances.
+     */
+    static Distances distances(String metric, float[] latitudes, float[] longitudes){
+        Metric m = Metric.of(metric, latitudes, longitudes);
+        float[][] axes = m.points(latitudes.length);
+        float[] point = new float[axes.length];
+        return (from, start, end, out) -> {
+            for (int axis = 0; axis < axes.length; axis++) point[axis] = axes[axis][from];
+            m.distances(point, axes, start, end, out);
+        };
+    }
+
+    /**
+     * Compile the data files into a snapshot, unless the snapshot was already compiled from the same data with the
+     * same metric.
+     * @param file The snapshot file.
+     * @param directory The directory the data files are in.
+     * @param metric The name of the metric to measure the step costs with.
+     * @throws IOException If the data files can't be read or the snapshot can't be written.
+     */
+    static void compile(Path file, Path directory, String metric) throws IOException {
+        long checksum = GraphSnapshot.checksum(metric, directory.resolve(CITIES_FILENAME),
+            directory.resolve(ROUTES_FILENAME));
+        if (GraphSnapshot.checksumOf(file) == checksum) {
+            System.err.println(file + " is up to date.");
+            return;
+        }
+        GraphSnapshot.write(loadGraph(directory, metric), checksum, file);
+    }
+
+    /**
+     * Load a contraction hierarchy, or build it and save it if the file does not exist yet or was built from
+     * different data.
+     * @param file The file the hierarchy is saved in.
+     * @param cities The graph of cities.
+     * @return The hierarchy.
+     * @throws IOException If the file can't be read or written.
+     */
+    static ContractionHierarchy loadHierarchy(Path file, StateSpace<City> cities) throws IOException {
+        if (Files.exists(file)) {
+            ContractionHierarchy hierarchy = ContractionHierarchy.read(file);
+            if (hierarchy.matches(cities)) return hierarchy;
+            System.err.println(file + " was built from different data, rebuilding it.");
+        }
+        ContractionHierarchy hierarchy = ContractionHierarchy.build(cities);
+        hierarchy.write(file);
+        return hierarchy;
+    }
 
-        SearchAlgorithm<City> dfs = new DepthFirst<>(new HashSet<>(cities.values()));
-        System.out.println(dfs.execute(start, end).resultsString());
+    /**
+     * Run every algorithm between two cities and collect their reports.
+     * @param catalog The graph of cities.
+     * @param algorithms The algorithms to run, in the order their reports should appear.
+     * @param startName The name of the start city, or a point to start from the city nearest to.
+     * @param endName The name of the end city, or a point to end at the city nearest to.
+     * @param statistics Where to report the statistics of each search, or null to leave them out.
+     * @return The reports, each followed by a blank line. If either city does not exist, a one line error instead.
+     */
+    static String answer(RouteCatalog catalog, List<SearchAlgorithm<City>> algorithms,
+                         String startName, String endName, StatisticsReporter statistics){
+        City start = catalog.locate(startName);
+        City end = catalog.locate(endName);
 
-        SearchAlgorithm<City> aStar = new AStar<>(new HashSet<>(cities.values()));
-        System.out.println(aStar.execute(start, end).resultsString());
+        if (start == null) return "No such city: (" + startName + ")" + System.lineSeparator();
+        if (end == null) return "No such city: (" + endName + ")" + System.lineSeparator();
 
+        StringBuilder sb = new StringBuilder();
+        for (SearchAlgorithm<City> algorithm : algorithms) {
+            SearchAlgorithm<City>.Results<City, SearchAlgorithm<City>> results = algorithm.execute(start, end);
+            sb.append(results.resultsString());
+            if (statistics != null) sb.append(statistics.report(start, end, results));
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
     }
 
 }
 
 /**
- * Generic representation for a state in a statespace. Parameterized such that we don't lose the type information on
- * this interface's function definitions due to type erasure in Java.
- * @param <S> The type of the state.
+ * Answers a stream of queries on a pool of worker threads. Each query is a fixed number of lines of input, and the
+ * answers are written in input order by a separate writer thread. Finished answers wait in a bounded reorder buffer
+ * until every answer before them has been written, and reading stops whenever the buffer is full, so memory use does
+ * not depend on the length of the input. The output is flushed whenever the writer catches up with the workers, so a
+ * client that waits for each answer before sending the next query is not kept waiting. A query that fails gets an
+ * answer saying so, and the queries after it are answered as usual.
  */
-interface State<S>{
+class QueryPipeline {
+    private final ForkJoinPool pool;
+    private final int window;
 
     /**
-     * Get the name of this state.
-     * @return
+     * Create a pipeline. The worker threads are shared by every stream the pipeline runs.
+     * @param threads The number of worker threads.
+     * @param window The most queries that may be in flight at once on any one stream.
      */
-    String name();
+    QueryPipeline(int threads, int window){
+        this.pool = new ForkJoinPool(threads);
+        this.window = window;
+    }
+
+    /**
+     * Answer every query in the input, returning once the last answer has been written and flushed.
+     * @param input The queries.
+     * @param output Where to write the answers.
+     * @param linesPerQuery How many lines of input make up one query. A trailing incomplete query is ignored.
+     * @param query Answers a single query given its lines.
+     * @param failed Answers a query that failed, given what it threw.
+     * @throws IOException If reading or writing fails.
+     */
+    void run(BufferedReader input, Writer output, int linesPerQuery, Function<String[], String> query,
+             Function<RuntimeException, String> failed) throws IOException {
+        BlockingQueue<ForkJoinTask<String>> pending = new ArrayBlockingQueue<>(this.window);
+        ForkJoinTask<String> done = ForkJoinTask.adapt(() -> null);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+
+        Thread writer = new Thread(() -> {
+            try {
+                for (ForkJoinTask<String> task = pending.take(); task != done; task = pending.take()) {
+                    if (failure.get() != null) continue;
+                    try {
+                        output.write(task.join());
+                        if (pending.isEmpty()) output.flush();
+                    } catch (IOException e) {
+                        failure.set(e);
+                    }
+                }
+                if (failure.get() == null) output.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                failure.set(e);
+            }
+        }, "query-writer");
+        writer.start();
+
+        try {
+            read:
+            while (failure.get() == null) {
+                String[] lines = new String[linesPerQuery];
+                for (int i = 0; i < linesPerQuery; i++) {
+                    lines[i] = input.readLine();
+                    if (lines[i] == null) break read;
+                }
+                pending.put(this.pool.submit(() -> {
+                    try {
+                        return query.apply(lines);
+                    } catch (RuntimeException e) {
+                        return failed.apply(e);
+                    }
+                }));
+            }
+            pending.put(done);
+            writer.join();
+        } catch (InterruptedException e) {
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (failure.get() != null) throw failure.get();
+    }
+
+    /**
+     * Describe why a query failed, in one line.
+     * @param e What the query threw.
+     * @return The line, terminated.
+     */
+    static String failure(RuntimeException e){
+        String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        return "Query failed: " + message + System.lineSeparator();
+    }
+}
+
+/**
+ * Keeps a graph and its search algorithms resident and answers route queries against them, one query per line, either
+ * over stdin/stdout or over TCP connections on the loopback interface. A query is {@code algorithm start end}, where
+ * the algorithm is one of the registered names or {@code all}. The answer is the algorithm's report followed by a line
+ * holding a single {@code .}. Clients may send any number of queries without waiting, and the answers come back in the
+ * order the queries were sent.
+ */
+class RouteServer {
+    private static final String END_OF_ANSWER = "." + System.lineSeparator();
+
+    private final RouteCatalog.Loader loader;
+    private final RouteCache<City> cache;
+    private final StatisticsReporter statistics;
+    private final QueryPipeline pipeline;
+    private volatile RouteCatalog catalog;
+
+    /**
+     * Create a server, loading the graph and the algorithms.
+     * @param loader Loads the graph and the algorithms, at startup and whenever a client asks for a reload.
+     * @param cache Remembers results between queries, or null to work every query out.
+     * @param statistics Where to report the statistics of each search, or null to leave them out.
+     * @param pipeline Answers the queries.
+     * @throws IOException If the graph can't be loaded.
+     */
+    RouteServer(RouteCatalog.Loader loader, RouteCache<City> cache, StatisticsReporter statistics,
+                QueryPipeline pipeline) throws IOException {
+        this.loader = loader;
+        this.cache = cache;
+        this.statistics = statistics;
+        this.pipeline = pipeline;
+        this.catalog = this.watch(loader.load());
+    }
+
+    /**
+     * Forget every cached result whenever a route in a catalog changes.
+     * @param catalog The catalog.
+     * @return The catalog.
+     */
+    private RouteCatalog watch(RouteCatalog catalog){
+        if (this.cache != null && catalog.cities instanceof DynamicGraph) {
+            ((DynamicGraph) catalog.cities).listen((from, to) -> this.cache.invalidate());
+        }
+        return catalog;
+    }
+
+    /**
+     * Run random queries through every algorithm so that the JIT has compiled them before the first real query. The
+     * cache is left alone.
+     * @param queries How many queries to run on each algorithm.
+     */
+    void warmUp(int queries){
+        RouteCatalog catalog = this.catalog;
+        if (catalog.cities.size() == 0) return;
+        Random random = new Random(0);
+        for (int i = 0; i < queries; i++) {
+            City start = catalog.cities.state(random.nextInt(catalog.cities.size()));
+            City end = catalog.cities.state(random.nextInt(catalog.cities.size()));
+            for (SearchAlgorithm<City> algorithm : catalog.algorithms.values()) {
+                algorithm.execute(start, end);
+            }
+        }
+    }
+
+    /**
+     * Load the graph and the algorithms again, and forget every cached result. Queries that are already running
+     * finish on the old graph, and what they find is not cached.
+     * @return The number of cities in the new graph.
+     * @throws IOException If the graph can't be loaded. The old one stays in use.
+     */
+    synchronized int reload() throws IOException {
+        this.catalog = this.watch(this.loader.load());
+        if (this.cache != null) this.cache.invalidate();
+        return this.catalog.cities.size();
+    }
+
+    /**
+     * Answer queries from a single stream until it ends.
+     * @param input The queries.
+     * @param output Where to write the answers.
+     * @throws IOException If reading or writing fails.
+     */
+    void serve(BufferedReader input, Writer output) throws IOException {
+        this.pipeline.run(input, output, 1, lines -> this.answer(lines[0]),
+            e -> QueryPipeline.failure(e) + END_OF_ANSWER);
+    }
+
+    /**
+     * Accept connections on the loopback interface forever, answering each connection's queries on its own thread.
+     * @param port The port to listen on. 0 picks a free port.
+     * @throws IOException If the port can't be bound.
+     */
+    void listen(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " + serverSocket.getLocalSocketAddress());
+            for (;;) {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> {
+                    try (Socket s = socket) {
+                        this.serve(
+                            new BufferedReader(new InputStreamReader(s.getInputStream())),
+                            new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))
+                        );
+                    } catch (IOException e) {
+                        System.err.println("Connection from " + socket.getRemoteSocketAddress() + " failed: "
+                            + e.getMessage());
+                    }
+                }, "connection-" + socket.getRemoteSocketAddress());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+
+    /**
+     * List the cities nearest to a point, or within some distance of it, with their distances from it.
+     * @param tokens The query, {@code nearest latitude,longitude k} or {@code within latitude,longitude miles}.
+     * @return The cities, one per line, nearest first.
+     */
+    private String near(String[] tokens){
+        RouteCatalog catalog = this.catalog;
+        float[] point = RouteCatalog.point(tokens[1]);
+        if (point == null) return "Not a point: (" + tokens[1] + ")" + System.lineSeparator();
+        int[] found;
+        try {
+            if (tokens[0].equals("nearest")) {
+                int k = Integer.parseInt(tokens[2]);
+                if (k < 1) return "Not a count: (" + tokens[2] + ")" + System.lineSeparator();
+                found = catalog.index.nearest(point[0], point[1], k);
+            } else {
+                // NaN would fail every comparison and so let every city through.
+                float radius = Float.parseFloat(tokens[2]);
+                if (!(radius >= 0) || Float.isInfinite(radius)) {
+                    return "Not a distance: (" + tokens[2] + ")" + System.lineSeparator();
+                }
+                found = catalog.index.within(point[0], point[1], radius);
+            }
+        } catch (NumberFormatException e) {
+            return "Not a number: (" + tokens[2] + ")" + System.lineSeparator();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int id : found) {
+            City city = catalog.cities.state(id);
+            float distance = catalog.index.distance(point[0], point[1], id);
+            sb.append(city.name()).append(' ').append(Math.round(distance)).append(" miles");
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Work out the distance from each of a list of cities to each of another.
+     * @param tokens The query, {@code matrix source... to target...}.
+     * @return A line naming the targets, then a line per source with its name and its distance to each target, or
+     * {@code -} for a target that can't be reached, all separated by tabs.
+     */
+    private String matrix(String[] tokens){
+        RouteCatalog catalog = this.catalog;
+        int to = Arrays.asList(tokens).indexOf("to");
+        if (to < 2 || to == tokens.length - 1) {
+            return "Expected: matrix source... to target..." + System.lineSeparator();
+        }
+
+        City[] sources = new City[to - 1];
+        City[] targets = new City[tokens.length - to - 1];
+        for (int i = 1; i < tokens.length; i++) {
+            if (i == to) continue;
+            City city = catalog.locate(tokens[i]);
+            if (city == null) return "No such city: (" + tokens[i] + ")" + System.lineSeparator();
+            if (i < to) sources[i - 1] = city;
+            else targets[i - to - 1] = city;
+        }
+        int[] sourceIds = Arrays.stream(sources).mapToInt(City::id).toArray();
+        int[] targetIds = Arrays.stream(targets).mapToInt(City::id).toArray();
+        float[][] distances = catalog.matrix.distances(sourceIds, targetIds, new SearchStatistics());
+
+        StringBuilder sb = new StringBuilder("from");
+        for (City target : targets) sb.append('\t').append(target.name());
+        sb.append(System.lineSeparator());
+        for (int i = 0; i < sources.length; i++) {
+            sb.append(sources[i].name());
+            for (float distance : distances[i]) {
+                sb.append('\t');
+                sb.append(distance == Float.POSITIVE_INFINITY ? "-" : String.valueOf(Math.round(distance)));
+            }
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Change a route.
+     * @param tokens The change, {@code add from to [miles]}, {@code remove from to} or {@code reweight from to miles}.
+     * @return What was done, or why it wasn't.
+     */
+    private String change(String[] tokens){
+        RouteCatalog catalog = this.catalog;
+        if (!(catalog.cities instanceof DynamicGraph)) return "The routes can't be changed without -dynamic.";
+        DynamicGraph graph = (DynamicGraph) catalog.cities;
+
+        boolean hasMiles = tokens.length == 4;
+        if (tokens.length != (tokens[0].equals("add") ? (hasMiles ? 4 : 3) : tokens[0].equals("remove") ? 3 : 4)) {
+            return "Expected: add from to [miles], remove from to, or reweight from to miles";
+        }
+        City from = catalog.locate(tokens[1]);
+        City to = catalog.locate(tokens[2]);
+        if (from == null) return "No such city: (" + tokens[1] + ")";
+        if (to == null) return "No such city: (" + tokens[2] + ")";
+
+        try {
+            float miles = hasMiles ? Float.parseFloat(tokens[3]) : graph.distance(from.id(), to.id());
+            switch (tokens[0]) {
+                case "add":
+                    graph.addRoute(from.id(), to.id(), miles);
+                    return "Added " + from.name() + " - " + to.name() + ", " + Math.round(miles) + " miles.";
+                case "remove":
+                    graph.removeRoute(from.id(), to.id());
+                    return "Removed " + from.name() + " - " + to.name() + ".";
+                default:
+                    graph.reweightRoute(from.id(), to.id(), miles);
+                    return "Reweighted " + from.name() + " - " + to.name() + " to " + Math.round(miles) + " miles.";
+            }
+        } catch (NumberFormatException e) {
+            return "Not a number: (" + tokens[3] + ")";
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Answer a single query.
+     * @param line The query, {@code algorithm start end}, {@code nearest latitude,longitude k},
+     * {@code within latitude,longitude miles}, {@code matrix source... to target...}, a change to the routes,
+     * {@code add from to [miles]}, {@code remove from to} or {@code reweight from to miles}, or one of the commands
+     * {@code stats}, {@code metrics} and {@code reload}.
+     * @return The answer, terminated by the end-of-answer line. Blank queries get no answer at all.
+     */
+    String answer(String line){
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens.length == 1 && tokens[0].isEmpty()) return "";
+
+        if (tokens.length == 1 && tokens[0].equals("stats")) {
+            String statistics = this.cache == null ? "No cache." : this.cache.statistics();
+            return statistics + System.lineSeparator() + END_OF_ANSWER;
+        }
+        if (tokens.length == 1 && tokens[0].equals("metrics")) {
+            String metrics = this.statistics == null
+                ? "No metrics." + System.lineSeparator()
+                : this.statistics.prometheus();
+            return metrics + END_OF_ANSWER;
+        }
+        if (tokens.length == 1 && tokens[0].equals("reload")) {
+            try {
+                return "Reloaded " + this.reload() + " cities." + System.lineSeparator() + END_OF_ANSWER;
+            } catch (IOException e) {
+                return "Reload failed: " + e.getMessage() + System.lineSeparator() + END_OF_ANSWER;
+            }
+        }
+
+        if (tokens[0].equals("add") || tokens[0].equals("remove") || tokens[0].equals("reweight")) {
+            return this.change(tokens) + System.lineSeparator() + END_OF_ANSWER;
+        }
+
+        if (tokens[0].equals("matrix")) return this.matrix(tokens) + END_OF_ANSWER;
+
+        if (tokens.length != 3) return "Expected: algorithm start end" + System.lineSeparator() + END_OF_ANSWER;
+        if (tokens[0].equals("nearest") || tokens[0].equals("within")) return this.near(tokens) + END_OF_ANSWER;
+
+        RouteCatalog catalog = this.cache == null ? this.catalog : this.catalog.cached(this.cache);
+        List<SearchAlgorithm<City>> chosen;
+        if (tokens[0].equals("all")) {
+            chosen = catalog.defaults();
+        } else if (catalog.algorithms.containsKey(tokens[0])) {
+            chosen = Collections.singletonList(catalog.algorithms.get(tokens[0]));
+        } else {
+            return "No such algorithm: (" + tokens[0] + ")" + System.lineSeparator() + END_OF_ANSWER;
+        }
+
+        return Search.answer(catalog, chosen, tokens[1], tokens[2], this.statistics) + END_OF_ANSWER;
+    }
+}
+
+/**
+ * A graph of cities together with the algorithms set up to search it, by name, an index of where the cities are, and
+ * the distance matrix searches.
+ */
+class RouteCatalog {
+
+    /**
+     * Loads a catalog.
+     */
+    interface Loader {
+        RouteCatalog load() throws IOException;
+    }
+
+    final StateSpace<City> cities;
+    final Map<String, SearchAlgorithm<City>> algorithms;
+    final SpatialIndex index;
+    final DistanceMatrix matrix;
+    private volatile RouteCatalog cached;
+
+    RouteCatalog(StateSpace<City> cities, Map<String, SearchAlgorithm<City>> algorithms, SpatialIndex index,
+                 DistanceMatrix matrix){
+        this.cities = cities;
+        this.algorithms = algorithms;
+        this.index = index;
+        this.matrix = matrix;
+    }
+
+    /**
+     * Find a city by its name, or the city nearest to a point given as {@code latitude,longitude}, both in degrees
+     * with longitude counted west, like the data files count it.
+     * @param location The name or the point.
+     * @return The city, or null if there is no city by that name (or no cities at all).
+     */
+    City locate(String location){
+        City city = this.cities.state(location);
+        if (city != null) return city;
+
+        float[] point = point(location);
+        if (point == null) return null;
+        int nearest = this.index.nearest(point[0], point[1]);
+        return nearest < 0 ? null : this.cities.state(nearest);
+    }
+
+    /**
+     * Parse a point given as {@code latitude,longitude}.
+     * @param text The text.
+     * @return The latitude and the longitude, or null if the text isn't a point.
+     */
+    static float[] point(String text){
+        int comma = text.indexOf(',');
+        if (comma < 0) return null;
+        try {
+            float latitude = Float.parseFloat(text.substring(0, comma));
+            float longitude = Float.parseFloat(text.substring(comma + 1));
+            if (Float.isNaN(latitude) || Float.isNaN(longitude)) return null;
+            return new float[]{latitude, longitude};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the algorithms that are run when no particular algorithm is asked for.
+     * @return The algorithms, in the order their reports should appear.
+     */
+    List<SearchAlgorithm<City>> defaults(){
+        List<SearchAlgorithm<City>> defaults = new ArrayList<>();
+        for (String name : Search.DEFAULT_ALGORITHMS) defaults.add(this.algorithms.get(name));
+        return defaults;
+    }
+
+    /**
+     * Get the same catalog with every algorithm answering from a cache when it can. The cached catalog is built the
+     * first time it is asked for and kept for the queries after it, so every call must pass the same cache.
+     * @param cache The cache.
+     * @return The cached catalog.
+     */
+    RouteCatalog cached(RouteCache<City> cache){
+        RouteCatalog catalog = this.cached;
+        if (catalog != null) return catalog;
+        synchronized (this) {
+            if (this.cached == null) {
+                Map<String, SearchAlgorithm<City>> cached = new LinkedHashMap<>();
+                for (Map.Entry<String, SearchAlgorithm<City>> entry : this.algorithms.entrySet()) {
+                    cached.put(entry.getKey(), new CachingSearch<>(entry.getValue(), cache));
+                }
+                this.cached = new RouteCatalog(this.cities, cached, this.index, this.matrix);
+            }
+            return this.cached;
+        }
+    }
+}
+
+/**
+ * Remembers the results of recent searches, keyed by the algorithm and the start and end states, and forgets the least
+ * recently used ones once it is full. Safe to share between threads.
+ * @param <S> The type of the states.
+ */
+class RouteCache<S extends State<S>> {
+    private final LinkedHashMap<Key, SearchAlgorithm<S>.Results<S, SearchAlgorithm<S>>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long generation;
+
+    /**
+     * Create an empty cache.
+     * @param capacity The most results to remember.
+     */
+    RouteCache(int capacity){
+        this.entries = new LinkedHashMap<Key, SearchAlgorithm<S>.Results<S, SearchAlgorithm<S>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, SearchAlgorithm<S>.Results<S, SearchAlgorithm<S>>> e) {
+                if (this.size() <= capacity) return false;
+                RouteCache.this.evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Look up a result, counting it as a hit or a miss.
+     * @return The result, or null if it is not remembered.
+     */
+    synchronized SearchAlgorithm<S>.Results<S, SearchAlgorithm<S>> get(String algorithm, int start, int end){
+        SearchAlgorithm<S>.Results<S, SearchAlgorithm<S>> results = this.entries.get(new Key(algorithm, start, end));
+        if (results == null) this.misses++;
+        else this.hits++;
+        return results;
+    }
+
+    /**
+     * Get the generation of the cache, which moves on every time it is invalidated. A search reads it before it starts
+     * so that its result can be recognised as stale if the graph changes while it runs.
+     * @return The generation.
+     */
+    synchronized long generation(){
+        return this.generation;
+    }
+
+    /**
+     * Remember a result, unless the cache has been invalidated since the search that found it started.
+     * @param generation The generation of the cache when the search started.
+     */
+    synchronized void put(long generation, String algorithm, int start, int end,
+                          SearchAlgorithm<S>.Results<S, SearchAlgorithm<S>> results){
+        if (generation != this.generation) return;
+        this.entries.put(new Key(algorithm, start, end), results);
+    }
+
+    /**
+     * Forget every result, for when the graph they were worked out on has changed. Results of searches that are
+     * still running on the old graph are not remembered either.
+     */
+    synchronized void invalidate(){
+        this.entries.clear();
+        this.generation++;
+    }
+
+    /**
+     * Describe how well the cache is doing.
+     * @return One line with the hits, misses, evictions and current size.
+     */
+    synchronized String statistics(){
+        long lookups = this.hits + this.misses;
+        return "Cache: " + this.hits + " hits, " + this.misses + " misses ("
+            + (lookups == 0 ? 0 : Math.round(100.0 * this.hits / lookups)) + "% hit rate), "
+            + this.evictions + " evictions, " + this.entries.size() + " entries";
+    }
+
+    private static class Key {
+        final String algorithm;
+        final int start;
+        final int end;
+
+        Key(String algorithm, int start, int end){
+            this.algorithm = algorithm;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key key = (Key) obj;
+            return this.start == key.start && this.end == key.end && this.algorithm.equals(key.algorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.algorithm.hashCode() * 31 + this.start) * 31 + this.end;
+        }
+    }
+}
+
+/**
+ * Generic representation for a state in a statespace. Parameterized such that we don't lose the type information on
+ * this interface's function definitions due to type erasure in Java.
+ * @param <S> The type of the state.
+ */
+interface State<S>{
+
+    /**
+     * Get the name of this state.
+     * @return
+     */
+    String name();
+
+    /**
+     * Get the dense id of this state within its state space. Ids run from 0 to the size of the state space, and are
+     * what the search algorithms index their bookkeeping arrays with.
+     * @return The id of this state.
+     */
+    int id();
+
+    /**
+     * Calculate the direct distance between this state and some other arbitrary state.
+     * @param o
+     * @return
+     */
+    float distanceTo(S o);
+
+    /**
+     * Determine if an instance of this state is equal to some arbitrary object.
+     * @param obj The object to determine the equality between.
+     * @return Whether this state is equal to the other object.
+     */
+    boolean equals(Object obj);
+
+    /**
+     * Calculate the hashcode of this state. Used for when this state is stored in any
+     * type of hashing collection.
+     * @return The hashcode as an integer.
+     */
+    int hashCode();
+}
+
+/**
+ * A statespace that the search algorithms can walk by state id, without going through the state objects. Neighbors
+ * of a state are numbered from 0 to its degree, and are ordered by name. This makes the strong assumption that there
+ * is only one direct connection between any two states that are directly connected (i.e no two states can have
+ * multiple direct paths between them).
+ * @param <S> The type of the states in this statespace.
+ */
+interface StateSpace<S extends State<S>> {
+
+    /**
+     * Get the number of states in this statespace.
+     * @return The number of states.
+     */
+    int size();
+
+    /**
+     * Get the state with the given id.
+     * @param id The id of the state.
+     * @return The state.
+     */
+    S state(int id);
+
+    /**
+     * Look up a state by its name.
+     * @param name The name of the state.
+     * @return The state, or null if there is no state with that name.
+     */
+    S state(String name);
+
+    /**
+     * Get the number of neighbors of a state.
+     * @param id The id of the state.
+     * @return The number of neighbors.
+     */
+    int degree(int id);
+
+    /**
+     * Get a neighbor of a state.
+     * @param id The id of the state.
+     * @param i The index of the neighbor, between 0 and the degree of the state.
+     * @return The id of the neighbor.
+     */
+    int neighbor(int id, int i);
+
+    /**
+     * Get the cost of the step from a state to one of its neighbors.
+     * @param id The id of the state.
+     * @param i The index of the neighbor, between 0 and the degree of the state.
+     * @return The step cost.
+     */
+    float weight(int id, int i);
+
+    /**
+     * Calculate the direct distance between two states.
+     * @param from The id of the first state.
+     * @param to The id of the second state.
+     * @return The distance between them.
+     */
+    float distance(int from, int to);
+
+    /**
+     * Get the neighbors of a state and the step costs to them, all as they were at one moment. Searches read a state's
+     * neighbors through this rather than through {@link #degree}, {@link #neighbor} and {@link #weight}, which each
+     * look at the statespace again and can disagree with each other if it changes in between.
+     * @param id The id of the state.
+     * @return The neighbors.
+     */
+    default Adjacency adjacency(int id) {
+        StateSpace<S> stateSpace = this;
+        int degree = this.degree(id);
+        return new Adjacency() {
+            @Override
+            public int degree() {
+                return degree;
+            }
+
+            @Override
+            public int target(int i) {
+                return stateSpace.neighbor(id, i);
+            }
+
+            @Override
+            public float weight(int i) {
+                return stateSpace.weight(id, i);
+            }
+        };
+    }
+}
+
+/**
+ * The neighbors of one state in a statespace, and the step costs to them, as they were when they were asked for. They
+ * never change afterwards, even if the statespace does.
+ */
+interface Adjacency {
+
+    /**
+     * @return The number of neighbors.
+     */
+    int degree();
+
+    /**
+     * @param i The index of the neighbor, between 0 and the degree.
+     * @return The id of the neighbor.
+     */
+    int target(int i);
+
+    /**
+     * @param i The index of the neighbor, between 0 and the degree.
+     * @return The cost of the step to it.
+     */
+    float weight(int i);
+}
+
+/**
+ * A statespace of cities, which measures its distances with a {@link Metric} that knows where every city is.
+ */
+interface CitySpace extends StateSpace<City> {
+
+    /**
+     * Get the metric the direct distances and step costs are measured with.
+     * @return The metric.
+     */
+    Metric metric();
+}
+
+/**
+ * An implementation of a state in a statespace, representing a City located by coordinates.
+ */
+class City implements State<City> {
+    private final String name;
+    final String state;
+    final float latitude;
+    final float longitude;
+    private final int id;
+
+    /**
+     * Create an instance of a City from its parts.
+     * @param name The name of the city.
+     * @param state The state the city is in.
+     * @param latitude The latitude of the city.
+     * @param longitude The longitude of the city.
+     * @param id The id of the city within its graph.
+     */
+    City(String name, String state, float latitude, float longitude, int id){
+        this.name = name;
+        this.state = state;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.id = id;
+    }
+
+    /**
+     * Return the name of this state, in this case it is the name of the city.
+     * @return
+     */
+    @Override
+    public String name() {
+        return this.name;
+    }
+
+    /**
+     * Return the id of this city within its graph.
+     * @return The id.
+     */
+    @Override
+    public int id() {
+        return this.id;
+    }
+
+    /**
+     * Calculate the distance of this city from the distance of another using the coordinates provided in both.
+     * @param city The other city to find the distance to.
+     * @return The distance to the other city.
+     */
+    @Override
+    public float distanceTo(City city){
+        return distance(this.latitude, this.longitude, city.latitude, city.longitude);
+    }
+
+    /**
+     * Calculate the distance between two pairs of coordinates. Shared by the cities and the graph, so that the step
+     * costs stored in the graph are exactly the ones the cities would calculate.
+     * @return The distance between the coordinates.
+     */
+    static float distance(float lat1, float lon1, float lat2, float lon2){
+        return (float)Math.sqrt((lat1 - lat2)*(lat1 - lat2) + (lon1 - lon2)*(lon1 - lon2)) * 100;
+    }
+
+    /**
+     * Return a string representation of this city, which is useful for debugging (either interactively or by using
+     * print statements).
+     * @return The string representation of the city.
+     */
+    @Override
+    public String toString() {
+        return name
+            + state
+            + latitude + "," + longitude
+            + "#" + id;
+    }
+
+    /**
+     * Determine if this city is equal to another city by comparing the city names and states.
+     * @param obj The other city to compare against.
+     * @return True if the cities have the same name and state. False if they don't, or are not the same type.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof City)) return false;
+        City city = (City)obj;
+        return this.name.equals(city.name) && this.state.equals(city.state);
+    }
+
+    /**
+     * Calculate the hashcode for this city, which is useful for storing it inside of a HashSet or HashMap.
+     * @return The hashcode of the name multiplied by the hashcode of the state.
+     */
+    @Override
+    public int hashCode() {
+        return this.name.hashCode() * this.state.hashCode();
+    }
+}
+
+/**
+ * Measures the direct distance between cities, in miles, from their coordinates. Each metric is set up for one set of
+ * cities, and lays their coordinates out and precomputes whatever it can from them up front. There are two:
+ * <ul>
+ *     <li>{@code planar}: the straight line across latitude and longitude as if they were flat, at 100 miles to the
+ *     degree, as {@link City#distance} measures it. The shipped data and its expected output assume it, but it is
+ *     further off the further apart the cities are.</li>
+ *     <li>{@code haversine}: the great-circle distance on a sphere the size of the Earth. Each city is precomputed as a
+ *     point on the unit sphere from the sines and cosines of its coordinates, so a distance is just the straight chord
+ *     between two points, turned into the arc over it with one arcsine.</li>
+ * </ul>
+ * A metric also places every city as a point in a space where straight lines order pairs of cities the same way the
+ * metric does: latitude and longitude themselves for {@code planar}, the point on the unit sphere for
+ * {@code haversine}. A k-d tree over the points finds the nearest cities by the metric. Besides one distance at a time,
+ * a metric measures from one point to a whole run of points, as the tree's leaves are, kept as one array per
+ * coordinate. The squares of the straight lines are summed in a loop over those arrays with nothing but arithmetic in
+ * it, the shape of loop C2's auto-vectorizer turns into SIMD instructions, and they are turned into distances in a
+ * pass of their own, so that the haversine's arcsine, which is not vectorized, stays out of it.
+ */
+abstract class Metric {
+    static final List<String> NAMES = Arrays.asList("planar", "haversine");
+
+    /**
+     * The mean radius of the Earth, in miles.
+     */
+    static final double EARTH_RADIUS = 3958.8;
+
+    /**
+     * Set up a metric.
+     * @param name The name of the metric, one of {@link #NAMES}.
+     * @param latitudes The latitude of every city, in degrees, indexed by id. Kept, not copied.
+     * @param longitudes The longitude of every city, in degrees west, indexed by id. Kept, not copied.
+     * @return The metric.
+     */
+    static Metric of(String name, float[] latitudes, float[] longitudes){
+        switch (name) {
+            case "planar":
+                return new Planar(latitudes, longitudes);
+            case "haversine":
+                return new Haversine(latitudes, longitudes);
+            default:
+                throw new IllegalArgumentException("No such metric: (" + name + ")");
+        }
+    }
+
+    /**
+     * Set up a metric over coordinates kept outside the heap. Whatever the metric works out from the coordinates up
+     * front is kept outside the heap as well.
+     * @param name The name of the metric, one of {@link #NAMES}.
+     * @param latitudes The latitude of every city, in degrees, indexed by id. Kept, not copied.
+     * @param longitudes The longitude of every city, in degrees west, indexed by id. Kept, not copied.
+     * @return The metric.
+     */
+    static Metric of(String name, FloatBuffer latitudes, FloatBuffer longitudes){
+        switch (name) {
+            case "planar":
+                return new BufferPlanar(latitudes, longitudes);
+            case "haversine":
+                return new BufferHaversine(latitudes, longitudes);
+            default:
+                throw new IllegalArgumentException("No such metric: (" + name + ")");
+        }
+    }
+
+    abstract String name();
+
+    /**
+     * Measure the distance between two cities.
+     * @param from The id of one city.
+     * @param to The id of the other.
+     * @return The distance.
+     */
+    abstract float distance(int from, int to);
+
+    /**
+     * Measure the distance from one point to each of a run of others, all placed by this metric.
+     * @param point The point to measure from.
+     * @param axes The run of points, one array per coordinate, as {@link #points} lays them out.
+     * @param start The index of the first point of the run.
+     * @param end The index after the last point of the run.
+     * @param out Where to put the distances, the one to point {@code start + i} at {@code i}.
+     */
+    abstract void distances(float[] point, float[][] axes, int start, int end, float[] out);
+
+    /**
+     * Square the straight lines from a point to each of a run of points in the plane.
+     */
+    static void squares(float x, float y, float[] xs, float[] ys, int start, int end, float[] out){
+        for (int i = start; i < end; i++) {
+            float dx = xs[i] - x;
+            float dy = ys[i] - y;
+            out[i - start] = dx * dx + dy * dy;
+        }
+    }
+
+    /**
+     * Square the straight lines from a point to each of a run of points in space.
+     */
+    static void squares(float x, float y, float z, float[] xs, float[] ys, float[] zs, int start, int end, float[] out){
+        for (int i = start; i < end; i++) {
+            float dx = xs[i] - x;
+            float dy = ys[i] - y;
+            float dz = zs[i] - z;
+            out[i - start] = dx * dx + dy * dy + dz * dz;
+        }
+    }
+
+    /**
+     * @return The number of coordinates a city is placed at.
+     */
+    abstract int dimensions();
+
+    /**
+     * Place every city as a point.
+     * @param n The number of cities.
+     * @return The points, one array per coordinate, the coordinate along axis {@code a} of city {@code i} at
+     * {@code [a][i]}.
+     */
+    float[][] points(int n){
+        int dimensions = this.dimensions();
+        float[][] axes = new float[dimensions][n];
+        float[] point = new float[dimensions];
+        for (int i = 0; i < n; i++) {
+            this.place(i, point, 0);
+            for (int axis = 0; axis < dimensions; axis++) axes[axis][i] = point[axis];
+        }
+        return axes;
+    }
+
+    /**
+     * Place a city as a point. The straight line between two points is no longer than the line between two others
+     * exactly when the distance between their cities is no longer.
+     * @param id The id of the city.
+     * @param point Where to put the coordinates of the point.
+     * @param at Where in the array they start.
+     */
+    abstract void place(int id, float[] point, int at);
+
+    /**
+     * Place a point given by its latitude and longitude the same way as a city.
+     */
+    abstract void place(float latitude, float longitude, float[] point, int at);
+
+    /**
+     * Turn the square of the straight line between two points into the distance between them.
+     */
+    abstract float length(float squared);
+
+    /**
+     * Measure the distance from a point given by its latitude and longitude to a city.
+     */
+    float distance(float latitude, float longitude, int to){
+        int dimensions = this.dimensions();
+        float[] points = new float[2 * dimensions];
+        this.place(latitude, longitude, points, 0);
+        this.place(to, points, dimensions);
+        float squared = 0;
+        for (int i = 0; i < dimensions; i++) {
+            float d = points[i] - points[dimensions + i];
+            squared += d * d;
+        }
+        return this.length(squared);
+    }
+
+    private static class Planar extends Metric {
+        private final float[] latitudes;
+        private final float[] longitudes;
+
+        Planar(float[] latitudes, float[] longitudes){
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+        }
+
+        @Override
+        String name() {
+            return "planar";
+        }
+
+        @Override
+        float distance(int from, int to) {
+            return City.distance(this.latitudes[from], this.longitudes[from], this.latitudes[to], this.longitudes[to]);
+        }
+
+        @Override
+        void place(int id, float[] point, int at) {
+            point[at] = this.latitudes[id];
+            point[at + 1] = this.longitudes[id];
+        }
+
+        @Override
+        int dimensions() {
+            return 2;
+        }
+
+        @Override
+        void place(float latitude, float longitude, float[] point, int at) {
+            point[at] = latitude;
+            point[at + 1] = longitude;
+        }
+
+        @Override
+        float length(float squared) {
+            return (float) Math.sqrt(squared) * 100;
+        }
+
+        @Override
+        void distances(float[] point, float[][] axes, int start, int end, float[] out) {
+            lengths(point, axes, start, end, out);
+        }
+
+        static void lengths(float[] point, float[][] axes, int start, int end, float[] out){
+            squares(point[0], point[1], axes[0], axes[1], start, end, out);
+            for (int i = 0; i < end - start; i++) out[i] = (float) Math.sqrt(out[i]) * 100;
+        }
+    }
+
+    private static class Haversine extends Metric {
+        private final float[] x;
+        private final float[] y;
+        private final float[] z;
+
+        Haversine(float[] latitudes, float[] longitudes){
+            int n = latitudes.length;
+            this.x = new float[n];
+            this.y = new float[n];
+            this.z = new float[n];
+            float[] point = new float[3];
+            for (int i = 0; i < n; i++) {
+                unit(latitudes[i], longitudes[i], point, 0);
+                this.x[i] = point[0];
+                this.y[i] = point[1];
+                this.z[i] = point[2];
+            }
+        }
+
+        /**
+         * Work out the point on the unit sphere at a latitude and longitude.
+         */
+        static void unit(float latitude, float longitude, float[] point, int at){
+            double phi = Math.toRadians(latitude);
+            double lambda = Math.toRadians(longitude);
+            point[at] = (float) (Math.cos(phi) * Math.cos(lambda));
+            point[at + 1] = (float) (Math.cos(phi) * Math.sin(lambda));
+            point[at + 2] = (float) Math.sin(phi);
+        }
+
+        @Override
+        String name() {
+            return "haversine";
+        }
+
+        @Override
+        float distance(int from, int to) {
+            float dx = this.x[from] - this.x[to];
+            float dy = this.y[from] - this.y[to];
+            float dz = this.z[from] - this.z[to];
+            return arc(dx * dx + dy * dy + dz * dz);
+        }
+
+        /**
+         * Turn the square of the chord between two points on the unit sphere into the length of the arc over it.
+         */
+        static float arc(float chordSquared){
+            return (float) (2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(chordSquared) / 2)));
+        }
+
+        @Override
+        void place(int id, float[] point, int at) {
+            point[at] = this.x[id];
+            point[at + 1] = this.y[id];
+            point[at + 2] = this.z[id];
+        }
+
+        @Override
+        int dimensions() {
+            return 3;
+        }
+
+        @Override
+        void place(float latitude, float longitude, float[] point, int at) {
+            unit(latitude, longitude, point, at);
+        }
+
+        @Override
+        float length(float squared) {
+            return arc(squared);
+        }
+
+        @Override
+        void distances(float[] point, float[][] axes, int start, int end, float[] out) {
+            lengths(point, axes, start, end, out);
+        }
+
+        static void lengths(float[] point, float[][] axes, int start, int end, float[] out){
+            squares(point[0], point[1], point[2], axes[0], axes[1], axes[2], start, end, out);
+            for (int i = 0; i < end - start; i++) out[i] = arc(out[i]);
+        }
+    }
+
+    private static class BufferPlanar extends Metric {
+        private final FloatBuffer latitudes;
+        private final FloatBuffer longitudes;
+
+        BufferPlanar(FloatBuffer latitudes, FloatBuffer longitudes){
+            this.latitudes = latitudes;
+            this.longitudes = longitudes;
+        }
+
+        @Override
+        String name() {
+            return "planar";
+        }
+
+        @Override
+        float distance(int from, int to) {
+            return City.distance(this.latitudes.get(from), this.longitudes.get(from),
+                this.latitudes.get(to), this.longitudes.get(to));
+        }
+
+        @Override
+        void place(int id, float[] point, int at) {
+            point[at] = this.latitudes.get(id);
+            point[at + 1] = this.longitudes.get(id);
+        }
+
+        @Override
+        int dimensions() {
+            return 2;
+        }
+
+        @Override
+        void place(float latitude, float longitude, float[] point, int at) {
+            point[at] = latitude;
+            point[at + 1] = longitude;
+        }
+
+        @Override
+        float length(float squared) {
+            return (float) Math.sqrt(squared) * 100;
+        }
+
+        @Override
+        void distances(float[] point, float[][] axes, int start, int end, float[] out) {
+            Planar.lengths(point, axes, start, end, out);
+        }
+    }
+
+    private static class BufferHaversine extends Metric {
+        private final FloatBuffer x;
+        private final FloatBuffer y;
+        private final FloatBuffer z;
+
+        BufferHaversine(FloatBuffer latitudes, FloatBuffer longitudes){
+            int n = latitudes.limit();
+            this.x = ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            this.y = ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            this.z = ByteBuffer.allocateDirect(n * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            float[] point = new float[3];
+            for (int i = 0; i < n; i++) {
+                Haversine.unit(latitudes.get(i), longitudes.get(i), point, 0);
+                this.x.put(i, point[0]);
+                this.y.put(i, point[1]);
+                this.z.put(i, point[2]);
+            }
+        }
+
+        @Override
+        String name() {
+            return "haversine";
+        }
+
+        @Override
+        float distance(int from, int to) {
+            float dx = this.x.get(from) - this.x.get(to);
+            float dy = this.y.get(from) - this.y.get(to);
+            float dz = this.z.get(from) - this.z.get(to);
+            return Haversine.arc(dx * dx + dy * dy + dz * dz);
+        }
+
+        @Override
+        void place(int id, float[] point, int at) {
+            point[at] = this.x.get(id);
+            point[at + 1] = this.y.get(id);
+            point[at + 2] = this.z.get(id);
+        }
+
+        @Override
+        int dimensions() {
+            return 3;
+        }
+
+        @Override
+        void place(float latitude, float longitude, float[] point, int at) {
+            Haversine.unit(latitude, longitude, point, at);
+        }
+
+        @Override
+        float length(float squared) {
+            return Haversine.arc(squared);
+        }
+
+        @Override
+        void distances(float[] point, float[][] axes, int start, int end, float[] out) {
+            Haversine.lengths(point, axes, start, end, out);
+        }
+    }
+}
+
+/**
+ * A graph of cities stored in compressed sparse row form. The coordinates live in primitive arrays indexed by city id,
+ * and the neighbors of city {@code i} are {@code targets[offsets[i]]} up to (but not including)
+ * {@code targets[offsets[i + 1]]}, sorted by name, with the step cost of each one precomputed in {@code weights}. Step
+ * costs and direct distances are both measured with the graph's {@link Metric}.
+ */
+class Graph implements CitySpace {
+    private final City[] cities;
+    private final Map<String, City> names;
+    final float[] latitudes;
+    final float[] longitudes;
+    final Metric metric;
+    final int[] offsets;
+    final int[] targets;
+    final float[] weights;
+
+    /**
+     * Build the graph.
+     * @param cities The cities, indexed by id.
+     * @param routes The ids of the cities at each end of every route, one route after the other. Every route is
+     *               added in both directions.
+     * @param metric The name of the metric to measure distances with.
+     */
+    Graph(City[] cities, int[] routes, String metric){
+        int n = cities.length;
+        this.cities = cities;
+        this.names = new HashMap<>();
+        this.latitudes = new float[n];
+        this.longitudes = new float[n];
+        for (int i = 0; i < n; i++) {
+            this.names.put(cities[i].name(), cities[i]);
+            this.latitudes[i] = cities[i].latitude;
+            this.longitudes[i] = cities[i].longitude;
+        }
+        this.metric = Metric.of(metric, this.latitudes, this.longitudes);
+
+        int m = routes.length;
+        int[] from = new int[m];
+        int[] to = new int[m];
+        for (int e = 0; e < m; e += 2) {
+            from[e] = routes[e]; to[e] = routes[e + 1];
+            from[e + 1] = routes[e + 1]; to[e + 1] = routes[e];
+        }
+
+        // Lay the links out by source, then sort and dedupe each city's slice by the name of the neighbor.
+        int[] rank = rankByName(this.cities);
+        int[] start = new int[n + 1];
+        for (int e = 0; e < m; e++) start[from[e] + 1]++;
+        for (int i = 0; i < n; i++) start[i + 1] += start[i];
+        long[] slots = new long[m];
+        int[] fill = Arrays.copyOf(start, n);
+        for (int e = 0; e < m; e++) {
+            slots[fill[from[e]]++] = ((long) rank[to[e]] << 32) | to[e];
+        }
+
+        this.offsets = new int[n + 1];
+        int[] targets = new int[m];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            Arrays.sort(slots, start[i], start[i + 1]);
+            for (int s = start[i]; s < start[i + 1]; s++) {
+                if (s > start[i] && slots[s] == slots[s - 1]) continue;
+                targets[count++] = (int) slots[s];
+            }
+            this.offsets[i + 1] = count;
+        }
+        this.targets = Arrays.copyOf(targets, count);
+
+        this.weights = new float[count];
+        for (int i = 0; i < n; i++) {
+            for (int e = this.offsets[i]; e < this.offsets[i + 1]; e++) {
+                this.weights[e] = this.distance(i, this.targets[e]);
+            }
+        }
+    }
+
+    /**
+     * Work out the position of every city when they are sorted by name.
+     * @param cities The cities, indexed by id.
+     * @return The rank of every city, indexed by id.
+     */
+    private static int[] rankByName(City[] cities){
+        Integer[] order = new Integer[cities.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparing(i -> cities[i].name()));
+        int[] rank = new int[cities.length];
+        for (int r = 0; r < order.length; r++) rank[order[r]] = r;
+        return rank;
+    }
+
+    @Override
+    public int size() {
+        return this.cities.length;
+    }
+
+    @Override
+    public City state(int id) {
+        return this.cities[id];
+    }
+
+    @Override
+    public City state(String name) {
+        return this.names.get(name);
+    }
+
+    @Override
+    public int degree(int id) {
+        return this.offsets[id + 1] - this.offsets[id];
+    }
+
+    @Override
+    public int neighbor(int id, int i) {
+        return this.targets[this.offsets[id] + i];
+    }
+
+    @Override
+    public float weight(int id, int i) {
+        return this.weights[this.offsets[id] + i];
+    }
+
+    @Override
+    public float distance(int from, int to) {
+        return this.metric.distance(from, to);
+    }
+
+    @Override
+    public Metric metric() {
+        return this.metric;
+    }
+}
+
+/**
+ * A graph of cities whose routes can be added, removed and reweighted while it is being searched. Routes are changed
+ * in both directions at once. The routes of a city that has never been changed are read straight from the graph
+ * underneath; a city whose routes have changed gets its own copy, sorted by name like the rest, which is replaced as a
+ * whole on every change. A search reads a city's routes through {@link #adjacency}, which hands it one copy to read
+ * them all from, so it never sees them half written, even though degree, neighbor and weight asked one after the other
+ * may each see a different copy. A search that runs while a change is being made may see it at one end of the route
+ * and not yet at the other.
+ */
+class DynamicGraph implements CitySpace {
+
+    /**
+     * Hears about every change to the routes.
+     */
+    interface RouteListener {
+
+        /**
+         * A route has been added, removed or reweighted.
+         * @param from The id of the city at one end.
+         * @param to The id of the city at the other end.
+         */
+        void routeChanged(int from, int to);
+    }
+
+    private final CitySpace base;
+    private final AtomicReferenceArray<Routes> changed;
+    private final List<RouteListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param base The graph as loaded. It is never modified.
+     */
+    DynamicGraph(CitySpace base){
+        this.base = base;
+        this.changed = new AtomicReferenceArray<>(base.size());
+    }
+
+    /**
+     * Start telling a listener about changes.
+     * @param listener The listener.
+     */
+    void listen(RouteListener listener){
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Add a route that does not exist yet.
+     * @param weight The length of the route, which can't be shorter than the direct distance, or the heuristics
+     *               would overestimate.
+     * @throws IllegalArgumentException If the route exists, is from a city to itself, or is too short.
+     */
+    synchronized void addRoute(int from, int to, float weight){
+        if (this.index(from, to) >= 0) throw new IllegalArgumentException("The route already exists.");
+        this.setRoute(from, to, weight);
+    }
+
+    /**
+     * Change the length of a route.
+     * @param weight The new length, which can't be shorter than the direct distance.
+     * @throws IllegalArgumentException If the route does not exist or is too short.
+     */
+    synchronized void reweightRoute(int from, int to, float weight){
+        if (this.index(from, to) < 0) throw new IllegalArgumentException("No such route.");
+        this.setRoute(from, to, weight);
+    }
+
+    /**
+     * Remove a route.
+     * @throws IllegalArgumentException If the route does not exist.
+     */
+    synchronized void removeRoute(int from, int to){
+        if (this.index(from, to) < 0) throw new IllegalArgumentException("No such route.");
+        this.changed.set(from, this.routes(from).without(this.index(from, to)));
+        this.changed.set(to, this.routes(to).without(this.index(to, from)));
+        for (RouteListener listener : this.listeners) listener.routeChanged(from, to);
+    }
+
+    private void setRoute(int from, int to, float weight){
+        if (from == to) throw new IllegalArgumentException("A route can't go from a city to itself.");
+        if (!(weight >= this.distance(from, to))) {
+            throw new IllegalArgumentException("A route can't be shorter than the direct distance, "
+                + Math.round(this.distance(from, to)) + " miles.");
+        }
+        this.changed.set(from, this.with(from, to, weight));
+        this.changed.set(to, this.with(to, from, weight));
+        for (RouteListener listener : this.listeners) listener.routeChanged(from, to);
+    }
+
+    /**
+     * Copy the routes of a city with a route set to a length, keeping them sorted by name.
+     */
+    private Routes with(int from, int to, float weight){
+        Routes routes = this.routes(from);
+        int i = this.index(from, to);
+        if (i >= 0) return routes.with(i, to, weight, false);
+
+        String name = this.state(to).name();
+        int at = 0;
+        while (at < routes.targets.length && this.state(routes.targets[at]).name().compareTo(name) < 0) at++;
+        return routes.with(at, to, weight, true);
+    }
+
+    /**
+     * Get the routes of a city as a copy of its own, to be changed.
+     */
+    private Routes routes(int id){
+        Routes routes = this.changed.get(id);
+        if (routes != null) return routes;
+        int degree = this.base.degree(id);
+        int[] targets = new int[degree];
+        float[] weights = new float[degree];
+        for (int i = 0; i < degree; i++) {
+            targets[i] = this.base.neighbor(id, i);
+            weights[i] = this.base.weight(id, i);
+        }
+        return new Routes(targets, weights);
+    }
+
+    /**
+     * @return The index of a neighbor among the neighbors of a city, or -1 if it isn't one.
+     */
+    private int index(int from, int to){
+        for (int i = 0, degree = this.degree(from); i < degree; i++) {
+            if (this.neighbor(from, i) == to) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return this.base.size();
+    }
+
+    @Override
+    public City state(int id) {
+        return this.base.state(id);
+    }
+
+    @Override
+    public City state(String name) {
+        return this.base.state(name);
+    }
+
+    @Override
+    public int degree(int id) {
+        Routes routes = this.changed.get(id);
+        return routes == null ? this.base.degree(id) : routes.targets.length;
+    }
+
+    @Override
+    public int neighbor(int id, int i) {
+        Routes routes = this.changed.get(id);
+        return routes == null ? this.base.neighbor(id, i) : routes.targets[i];
+    }
+
+    @Override
+    public float weight(int id, int i) {
+        Routes routes = this.changed.get(id);
+        return routes == null ? this.base.weight(id, i) : routes.weights[i];
+    }
+
+    @Override
+    public Adjacency adjacency(int id) {
+        Routes routes = this.changed.get(id);
+        return routes == null ? this.base.adjacency(id) : routes;
+    }
+
+    @Override
+    public float distance(int from, int to) {
+        return this.base.distance(from, to);
+    }
+
+    @Override
+    public Metric metric() {
+        return this.base.metric();
+    }
+
+    /**
+     * The routes of one city. Never modified once built.
+     */
+    private static class Routes implements Adjacency {
+        final int[] targets;
+        final float[] weights;
+
+        Routes(int[] targets, float[] weights){
+            this.targets = targets;
+            this.weights = weights;
+        }
+
+        @Override
+        public int degree() {
+            return this.targets.length;
+        }
+
+        @Override
+        public int target(int i) {
+            return this.targets[i];
+        }
+
+        @Override
+        public float weight(int i) {
+            return this.weights[i];
+        }
+
+        Routes with(int at, int target, float weight, boolean insert){
+            int degree = this.targets.length + (insert ? 1 : 0);
+            int[] targets = new int[degree];
+            float[] weights = new float[degree];
+            System.arraycopy(this.targets, 0, targets, 0, at);
+            System.arraycopy(this.weights, 0, weights, 0, at);
+            int rest = insert ? at : at + 1;
+            System.arraycopy(this.targets, rest, targets, at + 1, this.targets.length - rest);
+            System.arraycopy(this.weights, rest, weights, at + 1, this.weights.length - rest);
+            targets[at] = target;
+            weights[at] = weight;
+            return new Routes(targets, weights);
+        }
+
+        Routes without(int at){
+            int[] targets = new int[this.targets.length - 1];
+            float[] weights = new float[this.weights.length - 1];
+            System.arraycopy(this.targets, 0, targets, 0, at);
+            System.arraycopy(this.weights, 0, weights, 0, at);
+            System.arraycopy(this.targets, at + 1, targets, at, targets.length - at);
+            System.arraycopy(this.weights, at + 1, weights, at, weights.length - at);
+            return new Routes(targets, weights);
+        }
+    }
+}
+
+/**
+ * An optimistic guess of the distance between two states, for guiding informed searches.
+ */
+interface Heuristic {
+
+    /**
+     * Guess the distance between two states. The guess must never be more than the real distance.
+     * @param from The id of the first state.
+     * @param to The id of the second state.
+     * @return The guess.
+     */
+    float estimate(int from, int to);
+}
+
+/**
+ * Evaluates a heuristic towards a single end state lazily, remembering each value so it is only worked out once per
+ * search. Values are stamped with the search they belong to, so moving on to the next search does not have to clear
+ * anything. Not thread safe; each thread gets its own from {@link SearchContext#memo}.
+ */
+class HeuristicMemo {
+    private final float[] values;
+    private final int[] stamps;
+    private Heuristic heuristic;
+    private int generation;
+    private int goal;
+
+    /**
+     * Create a memo.
+     * @param size The number of states in the statespace.
+     */
+    HeuristicMemo(int size){
+        this.values = new float[size];
+        this.stamps = new int[size];
+    }
+
+    /**
+     * Forget every remembered value and start guessing the distance to a new end state.
+     * @param heuristic The heuristic to evaluate, which may be a different one from the last search's.
+     * @param goal The id of the end state.
+     */
+    void reset(Heuristic heuristic, int goal){
+        if (++this.generation == 0) {
+            Arrays.fill(this.stamps, 0);
+            this.generation = 1;
+        }
+        this.heuristic = heuristic;
+        this.goal = goal;
+    }
+
+    /**
+     * Guess the distance from a state to the end state.
+     * @param state The id of the state.
+     * @return The guess.
+     */
+    float get(int state){
+        if (this.stamps[state] != this.generation) {
+            this.values[state] = this.heuristic.estimate(state, this.goal);
+            this.stamps[state] = this.generation;
+        }
+        return this.values[state];
+    }
+}
+
+/**
+ * A fixed-size table of what a memory-bounded search remembers about the states it has come across: the heuristic's
+ * guess for each, and a length and a number, such as the depth or the search node it was reached at, from the last time
+ * it was recorded. Each state can only go in one of {@link #PROBES} slots, and a state that finds none of them free
+ * takes the one recorded longest ago, so the table forgets states rather than growing with the statespace; the
+ * searches only use what it remembers to avoid repeating work. The guesses are stamped with the search they belong to
+ * and the lengths and numbers with the round, like the guesses in {@link HeuristicMemo}, so starting either does not
+ * have to clear anything. Not thread safe; each thread keeps its own.
+ */
+class StateCache {
+
+    /**
+     * How many slots a state can go in.
+     */
+    static final int PROBES = 8;
+
+    private final Heuristic heuristic;
+    private final int mask;
+    private final int shift;
+    private final int[] keys;
+    private final int[] searches;
+    private final int[] rounds;
+    private final float[] guesses;
+    private final float[] lengths;
+    private final int[] numbers;
+    private int search;
+    private int round;
+    private int goal;
+
+    /**
+     * Create a cache.
+     * @param heuristic The heuristic to evaluate.
+     * @param capacity The most states to remember, rounded up to a power of two. No more is used than a statespace of
+     *                 the given size could fill.
+     * @param size The number of states in the statespace.
+     */
+    StateCache(Heuristic heuristic, int capacity, int size){
+        int slots = Integer.highestOneBit(Math.max(PROBES, Math.min(capacity, 2 * size)) - 1) << 1;
+        this.heuristic = heuristic;
+        this.mask = slots - 1;
+        this.shift = Integer.numberOfLeadingZeros(slots) + 1;
+        this.keys = new int[slots];
+        this.searches = new int[slots];
+        this.rounds = new int[slots];
+        this.guesses = new float[slots];
+        this.lengths = new float[slots];
+        this.numbers = new int[slots];
+    }
+
+    /**
+     * Forget everything and start guessing the distance to a new end state, in a new round.
+     * @param goal The id of the end state.
+     */
+    void reset(int goal){
+        this.goal = goal;
+        if (++this.search == 0) this.clear();
+        this.nextRound();
+    }
+
+    /**
+     * Forget every length and number recorded, but keep the guesses.
+     */
+    void nextRound(){
+        if (++this.round == 0) this.clear();
+    }
+
+    private void clear(){
+        Arrays.fill(this.searches, 0);
+        Arrays.fill(this.rounds, 0);
+        this.search = 1;
+        this.round = 1;
+    }
+
+    /**
+     * Guess the distance from a state to the end state, remembering the guess if it had to be worked out.
+     * @param state The id of the state.
+     * @return The guess.
+     */
+    float guess(int state){
+        int slot = this.find(state);
+        if (slot >= 0) return this.guesses[slot];
+        return this.guesses[this.claim(state)];
+    }
+
+    /**
+     * @return The slot holding a length and number recorded for the state in this round, or -1 if there is none.
+     */
+    int recorded(int state){
+        int slot = this.find(state);
+        return slot >= 0 && this.rounds[slot] == this.round ? slot : -1;
+    }
+
+    float length(int slot){
+        return this.lengths[slot];
+    }
+
+    int number(int slot){
+        return this.numbers[slot];
+    }
+
+    /**
+     * Record a length and a number for a state in this round, replacing any recorded before.
+     */
+    void record(int state, float length, int number){
+        int slot = this.find(state);
+        if (slot < 0) slot = this.claim(state);
+        this.rounds[slot] = this.round;
+        this.lengths[slot] = length;
+        this.numbers[slot] = number;
+    }
+
+    /**
+     * Forget what was recorded in a slot, but keep the guess.
+     */
+    void forget(int slot){
+        this.rounds[slot] = 0;
+    }
+
+    private int find(int state){
+        int start = state * 0x9E3779B9 >>> this.shift;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (start + i) & this.mask;
+            if (this.keys[slot] == state && this.searches[slot] == this.search) return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Give a state the slot, of those it can go in, that was recorded longest ago, preferring one left over from an
+     * earlier search, and the guess for the state.
+     */
+    private int claim(int state){
+        int start = state * 0x9E3779B9 >>> this.shift;
+        int victim = start & this.mask;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (start + i) & this.mask;
+            if (this.searches[slot] != this.search) {
+                victim = slot;
+                break;
+            }
+            if (this.rounds[slot] < this.rounds[victim]) victim = slot;
+        }
+        this.keys[victim] = state;
+        this.searches[victim] = this.search;
+        this.rounds[victim] = 0;
+        this.guesses[victim] = this.heuristic.estimate(state, this.goal);
+        return victim;
+    }
+}
+
+/**
+ * The search contexts of the threads searching one statespace, shared by every algorithm set up on it. A thread runs
+ * one search at a time, so rather than every algorithm keeping arrays as big as the statespace for every thread, the
+ * algorithms on a thread take turns with the same ones: a context for each side of a search, the second only made for
+ * bidirectional searches, and whatever else an algorithm needs to keep per thread. They belong to the catalog the
+ * algorithms are in rather than to the threads, so a reload lets go of them along with the old catalog, and the
+ * contexts of threads that have ended are let go of when the next new thread asks for its own.
+ */
+class SearchContexts {
+    private final int size;
+    private final ConcurrentHashMap<Thread, Local> locals = new ConcurrentHashMap<>();
+
+    /**
+     * Create the contexts.
+     * @param size The number of states in the statespace.
+     */
+    SearchContexts(int size){
+        this.size = size;
+    }
+
+    /**
+     * Get one of the calling thread's contexts. Reset it before searching with it.
+     * @param side 0, or 1 for the side of a bidirectional search that searches from the end state.
+     * @return The context.
+     */
+    SearchContext get(int side){
+        Local local = this.local();
+        if (local.sides[side] == null) local.sides[side] = new SearchContext(this.size);
+        return local.sides[side];
+    }
+
+    /**
+     * Get something an algorithm keeps for the calling thread, on top of the contexts, made the first time the thread
+     * asks for it.
+     * @param owner The algorithm.
+     * @param make Makes it.
+     * @return What the algorithm keeps.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(Object owner, Supplier<T> make){
+        Local local = this.local();
+        Object kept = local.kept.get(owner);
+        if (kept == null) {
+            kept = make.get();
+            local.kept.put(owner, kept);
+        }
+        return (T) kept;
+    }
+
+    private Local local(){
+        Thread thread = Thread.currentThread();
+        Local local = this.locals.get(thread);
+        if (local == null) {
+            this.locals.keySet().removeIf(t -> !t.isAlive());
+            local = new Local();
+            this.locals.put(thread, local);
+        }
+        return local;
+    }
+
+    private static class Local {
+        final SearchContext[] sides = new SearchContext[2];
+        final Map<Object, Object> kept = new IdentityHashMap<>();
+    }
+}
+
+/**
+ * The bookkeeping of one search, in arrays indexed by state id: the parent and g-value of every state reached, whether
+ * it has been reached, closed, or reopened after being closed, and room for a frontier. Searching with it allocates
+ * nothing but the path that is found. Every flag is the stamp of the search that set it, so starting the next search
+ * only has to bump the stamp, and the arrays only have to be cleared when the stamps run out. Not thread safe; each
+ * thread gets its own from {@link SearchContexts}.
+ */
+class SearchContext {
+    final int[] parent;
+    final float[] g;
+
+    /**
+     * A queue or stack of state ids, for searches that put each state on their frontier at most once.
+     */
+    final int[] frontier;
+
+    private final int[] reached;
+    private final int[] closed;
+    private final int[] reopened;
+    private IndexedHeap heap;
+    private HeuristicMemo memo;
+    private int[] hops;
+    private int generation;
+
+    /**
+     * Create a context.
+     * @param size The number of states in the statespace.
+     */
+    SearchContext(int size){
+        this.parent = new int[size];
+        this.g = new float[size];
+        this.frontier = new int[size];
+        this.reached = new int[size];
+        this.closed = new int[size];
+        this.reopened = new int[size];
+    }
+
+    /**
+     * Forget the last search.
+     */
+    void reset(){
+        if (++this.generation == 0) {
+            Arrays.fill(this.reached, 0);
+            Arrays.fill(this.closed, 0);
+            Arrays.fill(this.reopened, 0);
+            this.generation = 1;
+        }
+        if (this.heap != null) this.heap.clear();
+    }
+
+    /**
+     * Get a heap for searches whose frontier is a priority queue, made the first time one is asked for.
+     * @return The heap, empty at the start of each search.
+     */
+    IndexedHeap heap(){
+        if (this.heap == null) this.heap = new IndexedHeap(this.parent.length);
+        return this.heap;
+    }
+
+    /**
+     * Get a heuristic memo for informed searches, made the first time one is asked for. Reset it before using it.
+     * @return The memo.
+     */
+    HeuristicMemo memo(){
+        if (this.memo == null) this.memo = new HeuristicMemo(this.parent.length);
+        return this.memo;
+    }
+
+    /**
+     * Get an array for searches that count the hops to each state, made the first time one is asked for. It is not
+     * stamped; a search only reads the hops of states it has reached.
+     * @return The array, indexed by state id.
+     */
+    int[] hops(){
+        if (this.hops == null) this.hops = new int[this.parent.length];
+        return this.hops;
+    }
+
+    boolean reached(int state){
+        return this.reached[state] == this.generation;
+    }
+
+    /**
+     * Reach a state, or reach it again by a shorter path.
+     * @param state The id of the state.
+     * @param parent The id of the state it was reached from. The start state is its own parent.
+     * @param g The length of the path it was reached by.
+     */
+    void reach(int state, int parent, float g){
+        this.parent[state] = parent;
+        this.g[state] = g;
+        this.reached[state] = this.generation;
+    }
+
+    boolean closed(int state){
+        return this.closed[state] == this.generation;
+    }
+
+    void close(int state){
+        this.closed[state] = this.generation;
+    }
+
+    /**
+     * Open a closed state again. It stays marked as reopened for the rest of the search.
+     * @param state The id of the state.
+     */
+    void reopen(int state){
+        this.closed[state] = 0;
+        this.reopened[state] = this.generation;
+    }
+
+    boolean reopened(int state){
+        return this.reopened[state] == this.generation;
+    }
+}
+
+/**
+ * The ALT (A*, landmarks and the triangle inequality) heuristic. The exact distance from a handful of landmark states
+ * to every state is worked out up front. Since the distance from a landmark to the end state is at most its distance
+ * to a state plus the distance from that state to the end state, the difference between the two landmark distances is
+ * a lower bound on the remaining distance. The guess is the best of those bounds and the direct distance.
+ */
+class Landmarks implements Heuristic {
+    private final StateSpace<?> stateSpace;
+    private final float[][] distances;
+
+    /**
+     * Pick the landmarks and work out their distances. Each landmark is the state furthest from the ones picked
+     * before it, which spreads them out around the edges of the graph where their bounds are tightest.
+     * @param stateSpace The statespace. Its step costs must be the same in both directions.
+     * @param count How many landmarks to pick.
+     */
+    Landmarks(StateSpace<?> stateSpace, int count){
+        this.stateSpace = stateSpace;
+        int n = stateSpace.size();
+        count = Math.min(count, n);
+        this.distances = new float[count][];
+
+        // Start from the state furthest from an arbitrary one, rather than the arbitrary one itself.
+        float[] nearest = n == 0 ? new float[0] : distancesFrom(stateSpace, 0);
+        for (int l = 0; l < count; l++) {
+            int landmark = 0;
+            for (int i = 1; i < n; i++) {
+                if (nearest[i] != Float.POSITIVE_INFINITY && nearest[i] > nearest[landmark]) landmark = i;
+            }
+            this.distances[l] = distancesFrom(stateSpace, landmark);
+            for (int i = 0; i < n; i++) {
+                nearest[i] = l == 0 ? this.distances[l][i] : Math.min(nearest[i], this.distances[l][i]);
+            }
+        }
+    }
+
+    @Override
+    public float estimate(int from, int to) {
+        float best = this.stateSpace.distance(from, to);
+        for (float[] d : this.distances) {
+            if (d[from] == Float.POSITIVE_INFINITY || d[to] == Float.POSITIVE_INFINITY) continue;
+            best = Math.max(best, Math.abs(d[to] - d[from]));
+        }
+        return best;
+    }
+
+    /**
+     * Work out the exact distance from one state to every other state with Dijkstra's algorithm.
+     * @param stateSpace The statespace.
+     * @param source The id of the state to measure from.
+     * @return The distances, indexed by state id. Unreachable states are infinitely far away.
+     */
+    static float[] distancesFrom(StateSpace<?> stateSpace, int source){
+        float[] distance = new float[stateSpace.size()];
+        Arrays.fill(distance, Float.POSITIVE_INFINITY);
+        IndexedHeap frontier = new IndexedHeap(stateSpace.size());
+
+        distance[source] = 0;
+        frontier.offer(source, 0, 0);
+        while (!frontier.isEmpty()) {
+            int state = frontier.poll();
+            Adjacency routes = stateSpace.adjacency(state);
+            for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                int neighbor = routes.target(i);
+                float g = distance[state] + routes.weight(i);
+                if (g < distance[neighbor]) {
+                    distance[neighbor] = g;
+                    frontier.offer(neighbor, g, 0);
+                }
+            }
+        }
+        return distance;
+    }
+}
+
+/**
+ * Works out the distances from each of a set of sources to each of a set of targets. Rather than a search per pair, it
+ * grows one Dijkstra search tree per source, which stops as soon as every target has been settled, and the sources are
+ * searched in parallel, each on its thread's search context, which is stamped with the search it belongs to so that a
+ * search does not have to clear it. The step costs must be the same in both directions for the distances to mean the
+ * same thing the other way around.
+ */
+class DistanceMatrix {
+    private final StateSpace<?> stateSpace;
+    private final SearchContexts contexts;
+
+    /**
+     * Create a distance matrix calculator.
+     * @param stateSpace The statespace.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    DistanceMatrix(StateSpace<?> stateSpace, SearchContexts contexts){
+        this.stateSpace = stateSpace;
+        this.contexts = contexts;
+    }
+
+    /**
+     * Work out the distance from every source to every target.
+     * @param sources The ids of the sources.
+     * @param targets The ids of the targets.
+     * @param statistics Where to count the work done, over every source. Each source's search is one node generated
+     *                   and expanded per state it reached and settled.
+     * @return The distances, a row per source and a column per target. Unreachable targets are infinitely far away.
+     */
+    float[][] distances(int[] sources, int[] targets, SearchStatistics statistics){
+        float[][] rows = new float[sources.length][];
+        SearchStatistics[] work = new SearchStatistics[sources.length];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            work[i] = new SearchStatistics();
+            rows[i] = this.distances(sources[i], targets, work[i]);
+        });
+        for (SearchStatistics w : work) statistics.add(w);
+        return rows;
+    }
+
+    /**
+     * Work out the distance from one source to every target.
+     * @param source The id of the source.
+     * @param targets The ids of the targets.
+     * @param statistics Where to count the work done.
+     * @return The distances, in the order of the targets. Unreachable targets are infinitely far away.
+     */
+    float[] distances(int source, int[] targets, SearchStatistics statistics){
+        SearchContext c = this.contexts.get(0);
+        c.reset();
+        IndexedHeap frontier = c.heap();
+
+        // Nothing is closed in a Dijkstra search that stops at its targets, so the closed stamps mark the targets.
+        int left = 0;
+        for (int target : targets) {
+            if (!c.closed(target)) left++;
+            c.close(target);
+        }
+
+        c.reach(source, source, 0);
+        frontier.offer(source, 0, 0);
+        statistics.generated++;
+        while (left > 0 && !frontier.isEmpty()) {
+            statistics.frontier(frontier.size());
+            int state = frontier.poll();
+            statistics.expanded++;
+            if (c.closed(state)) left--;
+            Adjacency routes = this.stateSpace.adjacency(state);
+            for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                int neighbor = routes.target(i);
+                float g = c.g[state] + routes.weight(i);
+                if (c.reached(neighbor) && g >= c.g[neighbor]) continue;
+                if (!c.reached(neighbor)) statistics.generated++;
+                c.reach(neighbor, state, g);
+                frontier.offer(neighbor, g, 0);
+            }
+        }
+
+        // Every target still on the frontier was reached, but not by a path known to be the shortest.
+        float[] distances = new float[targets.length];
+        for (int j = 0; j < targets.length; j++) {
+            int target = targets[j];
+            boolean settled = c.reached(target) && !frontier.contains(target);
+            distances[j] = settled ? c.g[target] : Float.POSITIVE_INFINITY;
+        }
+        return distances;
+    }
+}
+
+/**
+ * A binary min-heap of state ids that supports changing the key of a state that is already in the heap. Each state is
+ * in the heap at most once. States are ordered by their key, and states with equal keys by their tie-break.
+ */
+class IndexedHeap {
+    private final int[] heap;
+    private final int[] position;
+    private final float[] keys;
+    private final float[] tieBreaks;
+    private int size;
+
+    /**
+     * Create an empty heap.
+     * @param capacity The number of states in the statespace. Every state id must be less than this.
+     */
+    IndexedHeap(int capacity){
+        this.heap = new int[capacity];
+        this.position = new int[capacity];
+        this.keys = new float[capacity];
+        this.tieBreaks = new float[capacity];
+    }
+
+    boolean isEmpty(){
+        return this.size == 0;
+    }
+
+    int size(){
+        return this.size;
+    }
+
+    /**
+     * Determine if a state is in the heap.
+     * @param id The id of the state.
+     * @return True if the state is in the heap.
+     */
+    boolean contains(int id){
+        return this.position[id] != 0;
+    }
+
+    /**
+     * Get the key a state was last offered with.
+     * @param id The id of the state.
+     * @return The key. Only meaningful while the state is in the heap.
+     */
+    float key(int id){
+        return this.keys[id];
+    }
+
+    /**
+     * Get the state with the smallest key without removing it.
+     * @return The id of the state.
+     */
+    int peek(){
+        return this.heap[0];
+    }
+
+    /**
+     * Add a state to the heap, or change its key if it is already in it.
+     * @param id The id of the state.
+     * @param key The key to order the state by.
+     * @param tieBreak Orders states with equal keys. Smaller comes first.
+     */
+    void offer(int id, float key, float tieBreak){
+        this.keys[id] = key;
+        this.tieBreaks[id] = tieBreak;
+        if (this.contains(id)) {
+            int i = this.position[id] - 1;
+            this.siftUp(i);
+            this.siftDown(this.position[id] - 1);
+        } else {
+            this.heap[this.size] = id;
+            this.position[id] = ++this.size;
+            this.siftUp(this.size - 1);
+        }
+    }
+
+    /**
+     * Remove the state with the smallest key.
+     * @return The id of the state.
+     */
+    int poll(){
+        int top = this.heap[0];
+        this.removeAt(0);
+        return top;
+    }
+
+    /**
+     * Remove a state from the heap, if it is in it.
+     * @param id The id of the state.
+     */
+    void remove(int id){
+        if (this.contains(id)) this.removeAt(this.position[id] - 1);
+    }
+
+    /**
+     * Remove every state from the heap.
+     */
+    void clear(){
+        for (int i = 0; i < this.size; i++) this.position[this.heap[i]] = 0;
+        this.size = 0;
+    }
+
+    private void removeAt(int i){
+        int id = this.heap[i];
+        this.position[id] = 0;
+        int last = this.heap[--this.size];
+        if (i == this.size) return;
+        this.heap[i] = last;
+        this.position[last] = i + 1;
+        this.siftUp(i);
+        this.siftDown(this.position[last] - 1);
+    }
+
+    private boolean less(int a, int b){
+        int c = Float.compare(this.keys[a], this.keys[b]);
+        return c < 0 || (c == 0 && this.tieBreaks[a] < this.tieBreaks[b]);
+    }
+
+    private void siftUp(int i){
+        int id = this.heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!this.less(id, this.heap[parent])) break;
+            this.heap[i] = this.heap[parent];
+            this.position[this.heap[i]] = i + 1;
+            i = parent;
+        }
+        this.heap[i] = id;
+        this.position[id] = i + 1;
+    }
+
+    private void siftDown(int i){
+        int id = this.heap[i];
+        for (;;) {
+            int child = 2 * i + 1;
+            if (child >= this.size) break;
+            if (child + 1 < this.size && this.less(this.heap[child + 1], this.heap[child])) child++;
+            if (!this.less(this.heap[child], id)) break;
+            this.heap[i] = this.heap[child];
+            this.position[this.heap[i]] = i + 1;
+            i = child;
+        }
+        this.heap[i] = id;
+        this.position[id] = i + 1;
+    }
+}
+
+/**
+ * Reads the city and route data files a byte at a time, without regular expressions or a String per line. Large files
+ * are split into chunks on line boundaries, and the chunks are parsed in parallel. Lines that can't be used are
+ * skipped and reported with their file name and line number; blank lines are skipped quietly.
+ */
+class DataFileParser {
+    private static final int CHUNK_BYTES = 8 << 20;
+    private static final int MAX_TOKENS = 4;
+
+    private final Consumer<String> problems;
+
+    /**
+     * Create a parser.
+     * @param problems Told about every line that had to be skipped, in file order.
+     */
+    DataFileParser(Consumer<String> problems){
+        this.problems = problems;
+    }
+
+    /**
+     * Read the cities, one per line as name, state, latitude and longitude. Cities get dense ids in the order they
+     * appear in the file. A city with the same name as one before it is skipped.
+     * @param file The city file.
+     * @return The cities, indexed by id.
+     * @throws IOException If the file can't be read.
+     */
+    City[] parseCities(Path file) throws IOException {
+        List<CityChunk> chunks = this.parse(file, CityChunk::new);
+
+        List<City> cities = new ArrayList<>();
+        NameTable table = new NameTable(chunks.stream().mapToInt(chunk -> chunk.names.size()).sum());
+        int linesBefore = 0;
+        for (CityChunk chunk : chunks) {
+            for (int i = 0; i < chunk.names.size(); i++) {
+                byte[] name = chunk.names.get(i).getBytes(StandardCharsets.UTF_8);
+                if (table.add(name) != cities.size()) {
+                    this.problems.accept(file.getFileName() + ":" + (linesBefore + chunk.lines.get(i))
+                        + ": duplicate city " + chunk.names.get(i));
+                    continue;
+                }
+                cities.add(new City(chunk.names.get(i), chunk.states.get(i),
+                    Float.intBitsToFloat(chunk.coordinates.get(2 * i)),
+                    Float.intBitsToFloat(chunk.coordinates.get(2 * i + 1)), cities.size()));
+            }
+            linesBefore += chunk.lineCount;
+        }
+        return cities.toArray(new City[0]);
+    }
+
+    /**
+     * Read the routes, one per line as the names of the two cities they connect.
+     * @param file The route file.
+     * @param cities The cities the routes may refer to, indexed by id.
+     * @return The ids of the cities at each end of every route, one route after the other.
+     * @throws IOException If the file can't be read.
+     */
+    int[] parseRoutes(Path file, City[] cities) throws IOException {
+        NameTable table = new NameTable(cities.length);
+        for (City city : cities) table.add(city.name().getBytes(StandardCharsets.UTF_8));
+
+        List<RouteChunk> chunks = this.parse(file, () -> new RouteChunk(table));
+        IntList routes = new IntList(chunks.stream().mapToInt(chunk -> chunk.routes.size()).sum());
+        for (RouteChunk chunk : chunks) {
+            for (int i = 0; i < chunk.routes.size(); i++) routes.add(chunk.routes.get(i));
+        }
+        return routes.toArray();
+    }
+
+    /**
+     * Read the cities like {@link #parseCities}, but hand them over one at a time instead of collecting them, for
+     * graphs too big to keep as City objects.
+     * @param file The city file.
+     * @param cities Given every city, in file order. A city it already has one with the same name of is reported as a
+     *               duplicate.
+     * @throws IOException If the file can't be read.
+     */
+    void scanCities(Path file, CitySink cities) throws IOException {
+        this.scan(file, CityChunk::new, (chunk, linesBefore) -> {
+            for (int i = 0; i < chunk.names.size(); i++) {
+                if (!cities.add(chunk.names.get(i), chunk.states.get(i),
+                    Float.intBitsToFloat(chunk.coordinates.get(2 * i)),
+                    Float.intBitsToFloat(chunk.coordinates.get(2 * i + 1)))) {
+                    this.problems.accept(file.getFileName() + ":" + (linesBefore + chunk.lines.get(i))
+                        + ": duplicate city " + chunk.names.get(i));
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the routes like {@link #parseRoutes}, but hand them over one at a time instead of collecting them.
+     * @param file The route file.
+     * @param cities Finds the ids of the cities the routes may refer to.
+     * @param ends Given the ids of the cities at each end of every route, one route after the other.
+     * @throws IOException If the file can't be read.
+     */
+    void scanRoutes(Path file, Names cities, IntConsumer ends) throws IOException {
+        this.scan(file, () -> new RouteChunk(cities), (chunk, linesBefore) -> {
+            for (int i = 0; i < chunk.routes.size(); i++) ends.accept(chunk.routes.get(i));
+        });
+    }
+
+    /**
+     * Takes the cities read by {@link #scanCities}.
+     */
+    interface CitySink {
+
+        /**
+         * Take a city, unless there already is one with the same name.
+         * @return Whether the city was taken.
+         */
+        boolean add(String name, String state, float latitude, float longitude);
+    }
+
+    /**
+     * Finds the id of a city from its name in the bytes of a file.
+     */
+    interface Names {
+
+        /**
+         * Find a name in a buffer.
+         * @param buffer The buffer.
+         * @param from Where the name starts.
+         * @param to Where the name ends.
+         * @return The id of the city with that name, or -1 if there is none.
+         */
+        int find(ByteBuffer buffer, int from, int to);
+    }
+
+    /**
+     * Split a file into chunks that each end at the end of a line, parse them in parallel, and report their problems
+     * with line numbers counted from the start of the file.
+     */
+    private <T extends Chunk> List<T> parse(Path file, Supplier<T> chunkType) throws IOException {
+        List<T> chunks = split(file).parallelStream().map(buffer -> {
+            T chunk = chunkType.get();
+            chunk.parse(buffer);
+            return chunk;
+        }).collect(Collectors.toList());
+
+        int linesBefore = 0;
+        for (T chunk : chunks) linesBefore = this.report(file, chunk, linesBefore);
+        return chunks;
+    }
+
+    /**
+     * Like {@link #parse}, but parse the chunks one after the other and hand each one over, with the number of lines
+     * before it, as soon as its problems are reported. Only one chunk is held at a time.
+     */
+    private <T extends Chunk> void scan(Path file, Supplier<T> chunkType, ObjIntConsumer<T> each) throws IOException {
+        int linesBefore = 0;
+        for (ByteBuffer buffer : split(file)) {
+            T chunk = chunkType.get();
+            chunk.parse(buffer);
+            int lines = this.report(file, chunk, linesBefore);
+            each.accept(chunk, linesBefore);
+            linesBefore = lines;
+        }
+    }
+
+    /**
+     * Report the problems a chunk found.
+     * @return The number of lines up to the end of the chunk.
+     */
+    private int report(Path file, Chunk chunk, int linesBefore){
+        for (int i = 0; i < chunk.problemLines.size(); i++) {
+            this.problems.accept(file.getFileName() + ":" + (linesBefore + chunk.problemLines.get(i)) + ": "
+                + chunk.problemMessages.get(i));
+        }
+        return linesBefore + chunk.lineCount;
+    }
+
+    /**
+     * Map a file in chunks of about {@link #CHUNK_BYTES} that each end at the end of a line.
+     */
+    private static List<ByteBuffer> split(Path file) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            for (long start = 0; start < size; ) {
+                long end = Math.min(size, start + CHUNK_BYTES);
+                while (end < size) {
+                    probe.clear();
+                    int read = channel.read(probe, end);
+                    int newline = 0;
+                    while (newline < read && probe.get(newline) != '\n') newline++;
+                    end += newline < read ? newline + 1 : read;
+                    if (newline < read) break;
+                }
+                buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                start = end;
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Parse a decimal number, such as a coordinate. Numbers with few enough digits are worked out exactly from their
+     * digits; anything else goes through {@link Float#parseFloat}, so the result is always the same as that gives.
+     * @return The number, or NaN if the bytes are not a number.
+     */
+    static float parseFloat(ByteBuffer buffer, int from, int to){
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) negative = buffer.get(i++) == '-';
+
+        long digits = 0;
+        int count = 0;
+        int scale = 0;
+        boolean point = false;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && !point) {
+                point = true;
+            } else if (b >= '0' && b <= '9') {
+                digits = digits * 10 + (b - '0');
+                if (++count > 18) break;
+                if (point) scale++;
+            } else {
+                break;
+            }
+        }
+
+        // Both the digits and the power of ten fit in a float exactly, so one division rounded to float is exact.
+        if (i == to && count > 0 && digits < (1 << 24) && scale <= 10) {
+            float value = (float) (digits / POWERS_OF_TEN[scale]);
+            return negative ? -value : value;
+        }
+
+        byte[] bytes = new byte[to - from];
+        for (int j = 0; j < bytes.length; j++) bytes[j] = buffer.get(from + j);
+        try {
+            return Float.parseFloat(new String(bytes, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10};
+
+    private static String string(ByteBuffer buffer, int from, int to){
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buffer.get(from + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A chunk of a file. Splits it into lines and the lines into whitespace separated tokens, and keeps the problems
+     * it finds with line numbers counted from the start of the chunk.
+     */
+    private abstract static class Chunk {
+        int lineCount;
+        final IntList problemLines = new IntList();
+        final List<String> problemMessages = new ArrayList<>();
+
+        /**
+         * Handle a line that is not blank.
+         * @param buffer The chunk.
+         * @param line The line number, counted from 1 at the start of the chunk.
+         * @param tokens How many tokens the line has. Only the first {@link #MAX_TOKENS} are in the arrays.
+         * @param starts Where each token starts.
+         * @param ends Where each token ends.
+         */
+        abstract void line(ByteBuffer buffer, int line, int tokens, int[] starts, int[] ends);
+
+        void problem(int line, String message){
+            this.problemLines.add(line);
+            this.problemMessages.add(message);
+        }
+
+        void parse(ByteBuffer buffer){
+            int[] starts = new int[MAX_TOKENS];
+            int[] ends = new int[MAX_TOKENS];
+            int limit = buffer.limit();
+            int i = 0;
+            while (i < limit) {
+                this.lineCount++;
+                int tokens = 0;
+                for (;;) {
+                    while (i < limit && isSpace(buffer.get(i))) i++;
+                    if (i == limit || buffer.get(i) == '\n') break;
+                    int start = i;
+                    while (i < limit && buffer.get(i) != '\n' && !isSpace(buffer.get(i))) i++;
+                    if (tokens < MAX_TOKENS) {
+                        starts[tokens] = start;
+                        ends[tokens] = i;
+                    }
+                    tokens++;
+                }
+                if (tokens > 0) this.line(buffer, this.lineCount, tokens, starts, ends);
+                i++;
+            }
+        }
+
+        private static boolean isSpace(byte b){
+            return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b;
+        }
+    }
+
+    private static class CityChunk extends Chunk {
+        final List<String> names = new ArrayList<>();
+        final List<String> states = new ArrayList<>();
+        final IntList coordinates = new IntList();
+        final IntList lines = new IntList();
+
+        @Override
+        void line(ByteBuffer buffer, int line, int tokens, int[] starts, int[] ends) {
+            if (tokens != 4) {
+                this.problem(line, "expected name, state, latitude and longitude but found " + tokens + " fields");
+                return;
+            }
+            float latitude = parseFloat(buffer, starts[2], ends[2]);
+            float longitude = parseFloat(buffer, starts[3], ends[3]);
+            if (Float.isNaN(latitude) || Float.isNaN(longitude)) {
+                this.problem(line, "coordinates are not numbers");
+                return;
+            }
+            this.names.add(string(buffer, starts[0], ends[0]));
+            this.states.add(string(buffer, starts[1], ends[1]));
+            this.coordinates.add(Float.floatToRawIntBits(latitude));
+            this.coordinates.add(Float.floatToRawIntBits(longitude));
+            this.lines.add(line);
+        }
+    }
+
+    private static class RouteChunk extends Chunk {
+        final Names cities;
+        final IntList routes = new IntList();
+
+        RouteChunk(Names cities){
+            this.cities = cities;
+        }
+
+        @Override
+        void line(ByteBuffer buffer, int line, int tokens, int[] starts, int[] ends) {
+            if (tokens != 2) {
+                this.problem(line, "expected two city names but found " + tokens + " fields");
+                return;
+            }
+            int a = this.cities.find(buffer, starts[0], ends[0]);
+            int b = this.cities.find(buffer, starts[1], ends[1]);
+            if (a < 0 || b < 0) {
+                this.problem(line, "no such city " + string(buffer, a < 0 ? starts[0] : starts[1],
+                    a < 0 ? ends[0] : ends[1]));
+                return;
+            }
+            this.routes.add(a);
+            this.routes.add(b);
+        }
+    }
+}
+
+/**
+ * Gives names dense ids in the order they are added, and finds them again straight from the bytes of a file without
+ * making a String. An open addressing hash table over the UTF-8 bytes of the names.
+ */
+class NameTable implements DataFileParser.Names {
+    private final List<byte[]> names = new ArrayList<>();
+    private final int[] slots;
+
+    /**
+     * Create an empty table.
+     * @param capacity The most names that will be added.
+     */
+    NameTable(int capacity){
+        this.slots = new int[Integer.highestOneBit(Math.max(capacity, 1) * 2) * 2];
+    }
+
+    /**
+     * Add a name, unless it is already in the table.
+     * @param name The UTF-8 bytes of the name.
+     * @return The id of the name, which is the id it was first given if it was already in the table.
+     */
+    int add(byte[] name){
+        int mask = this.slots.length - 1;
+        for (int slot = hash(ByteBuffer.wrap(name), 0, name.length) & mask; ; slot = (slot + 1) & mask) {
+            int id = this.slots[slot] - 1;
+            if (id < 0) {
+                this.names.add(name);
+                this.slots[slot] = this.names.size();
+                return this.names.size() - 1;
+            }
+            if (Arrays.equals(this.names.get(id), name)) return id;
+        }
+    }
+
+    /**
+     * Find a name in a buffer.
+     * @param buffer The buffer.
+     * @param from Where the name starts.
+     * @param to Where the name ends.
+     * @return The id of the name, or -1 if it is not in the table.
+     */
+    @Override
+    public int find(ByteBuffer buffer, int from, int to){
+        int mask = this.slots.length - 1;
+        for (int slot = hash(buffer, from, to) & mask; ; slot = (slot + 1) & mask) {
+            int id = this.slots[slot] - 1;
+            if (id < 0) return -1;
+            byte[] name = this.names.get(id);
+            if (GraphSnapshot.compare(name, buffer, from, to) == 0) return id;
+        }
+    }
+
+    static int hash(ByteBuffer buffer, int from, int to){
+        int hash = 0x811c9dc5;
+        for (int i = from; i < to; i++) hash = (hash ^ (buffer.get(i) & 0xff)) * 0x01000193;
+        return hash ^ (hash >>> 16);
+    }
+}
+
+/**
+ * A compiled binary copy of a graph of cities, which can be memory mapped and searched without parsing anything. All
+ * numbers are big-endian. The file starts with a header:
+ * <pre>
+ *   int magic, int version, long checksum of the data files it was compiled from,
+ *   int number of cities n, int number of links m, int name bytes, int state bytes, int metric
+ * </pre>
+ * followed by these sections, in order:
+ * <pre>
+ *   int[n + 1] name offsets, int[n + 1] state offsets, float[n] latitudes, float[n] longitudes,
+ *   int[n + 1] link offsets, int[m] link targets, float[m] link weights, int[n] city ids sorted by name,
+ *   byte[] names, byte[] states
+ * </pre>
+ * The links are laid out exactly as in {@link Graph}. Names and states are UTF-8, and city {@code i}'s name is the
+ * bytes from its name offset up to the next city's.
+ */
+class GraphSnapshot {
+    static final int MAGIC = 0x43534e50;
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 36;
+
+    /**
+     * Calculate the checksum of the data files a snapshot is compiled from, and the metric it is compiled with.
+     * @param metric The name of the metric.
+     * @param files The data files.
+     * @return The CRC-32 of the name of the metric and then the contents of the files, one after the other.
+     * @throws IOException If the files can't be read.
+     */
+    static long checksum(String metric, Path... files) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(metric.getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = new byte[1 << 16];
+        for (Path file : files) {
+            try (InputStream in = Files.newInputStream(file)) {
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Read the checksum a snapshot was compiled with.
+     * @param file The snapshot.
+     * @return The checksum, or -1 if the file does not exist or is not a snapshot of the current version.
+     * @throws IOException If the file can't be read.
+     */
+    static long checksumOf(Path file) throws IOException {
+        if (!Files.exists(file)) return -1;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return -1;
+            return in.readLong();
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Write a snapshot of a graph.
+     * @param graph The graph.
+     * @param checksum The checksum of the data files the graph was loaded from.
+     * @param file The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    static void write(Graph graph, long checksum, Path file) throws IOException {
+        int n = graph.size();
+        byte[][] names = new byte[n][];
+        byte[][] states = new byte[n][];
+        int nameBytes = 0;
+        int stateBytes = 0;
+        for (int i = 0; i < n; i++) {
+            names[i] = graph.state(i).name().getBytes(StandardCharsets.UTF_8);
+            states[i] = graph.state(i).state.getBytes(StandardCharsets.UTF_8);
+            nameBytes += names[i].length;
+            stateBytes += states[i].length;
+        }
+
+        Integer[] byName = new Integer[n];
+        for (int i = 0; i < n; i++) byName[i] = i;
+        Arrays.sort(byName, (a, b) -> compare(names[a], ByteBuffer.wrap(names[b]), 0, names[b].length));
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(checksum);
+            out.writeInt(n);
+            out.writeInt(graph.targets.length);
+            out.writeInt(nameBytes);
+            out.writeInt(stateBytes);
+            out.writeInt(Metric.NAMES.indexOf(graph.metric.name()));
+
+            int offset = 0;
+            for (int i = 0; i < n; i++) { out.writeInt(offset); offset += names[i].length; }
+            out.writeInt(offset);
+            offset = 0;
+            for (int i = 0; i < n; i++) { out.writeInt(offset); offset += states[i].length; }
+            out.writeInt(offset);
+            for (float latitude : graph.latitudes) out.writeFloat(latitude);
+            for (float longitude : graph.longitudes) out.writeFloat(longitude);
+            for (int o : graph.offsets) out.writeInt(o);
+            for (int t : graph.targets) out.writeInt(t);
+            for (float w : graph.weights) out.writeFloat(w);
+            for (int id : byName) out.writeInt(id);
+            for (byte[] name : names) out.write(name);
+            for (byte[] state : states) out.write(state);
+        }
+    }
+
+    /**
+     * Compare a name to a name stored in a buffer, byte by byte as unsigned values.
+     * @return Less than 0 if the name comes first, more than 0 if the stored name does, or 0 if they are the same.
+     */
+    static int compare(byte[] name, ByteBuffer buffer, int from, int to){
+        int length = to - from;
+        for (int i = 0; i < Math.min(name.length, length); i++) {
+            int c = Integer.compare(name[i] & 0xff, buffer.get(from + i) & 0xff);
+            if (c != 0) return c;
+        }
+        return Integer.compare(name.length, length);
+    }
+}
+
+/**
+ * A graph of cities read straight out of a memory mapped {@link GraphSnapshot}. Nothing is parsed or copied when it is
+ * opened; the operating system pages the parts that are touched in on demand. City objects are only created when one
+ * is asked for, which the search algorithms only do for the cities on the path they found.
+ */
+class MappedGraph implements CitySpace {
+    private final int n;
+    private final IntBuffer nameOffsets;
+    private final IntBuffer stateOffsets;
+    private final FloatBuffer latitudes;
+    private final FloatBuffer longitudes;
+    private final IntBuffer offsets;
+    private final IntBuffer targets;
+    private final FloatBuffer weights;
+    private final IntBuffer byName;
+    private final ByteBuffer names;
+    private final ByteBuffer states;
+    private final Metric metric;
+    final long checksum;
+
+    /**
+     * Map a snapshot.
+     * @param file The snapshot.
+     * @throws IOException If the file can't be mapped, or is not a snapshot of the current version.
+     */
+    MappedGraph(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < GraphSnapshot.HEADER_BYTES || buffer.getInt(0) != GraphSnapshot.MAGIC) {
+            throw new IOException(file + " is not a graph snapshot");
+        }
+        if (buffer.getInt(4) != GraphSnapshot.VERSION) {
+            throw new IOException(file + " has unsupported version " + buffer.getInt(4));
+        }
+        this.checksum = buffer.getLong(8);
+        this.n = buffer.getInt(16);
+        int m = buffer.getInt(20);
+        int nameBytes = buffer.getInt(24);
+        int stateBytes = buffer.getInt(28);
+        int metric = buffer.getInt(32);
+        if (metric < 0 || metric >= Metric.NAMES.size()) throw new IOException(file + " has unknown metric " + metric);
+
+        int at = GraphSnapshot.HEADER_BYTES;
+        this.nameOffsets = section(buffer, at, (n + 1) * 4).asIntBuffer(); at += (n + 1) * 4;
+        this.stateOffsets = section(buffer, at, (n + 1) * 4).asIntBuffer(); at += (n + 1) * 4;
+        this.latitudes = section(buffer, at, n * 4).asFloatBuffer(); at += n * 4;
+        this.longitudes = section(buffer, at, n * 4).asFloatBuffer(); at += n * 4;
+        this.offsets = section(buffer, at, (n + 1) * 4).asIntBuffer(); at += (n + 1) * 4;
+        this.targets = section(buffer, at, m * 4).asIntBuffer(); at += m * 4;
+        this.weights = section(buffer, at, m * 4).asFloatBuffer(); at += m * 4;
+        this.byName = section(buffer, at, n * 4).asIntBuffer(); at += n * 4;
+        this.names = section(buffer, at, nameBytes); at += nameBytes;
+        this.states = section(buffer, at, stateBytes);
+        this.metric = Metric.of(Metric.NAMES.get(metric), this.latitudes, this.longitudes);
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, int at, int length){
+        ByteBuffer section = buffer.duplicate();
+        section.position(at);
+        section.limit(at + length);
+        return section.slice();
+    }
+
+    private static String string(ByteBuffer bytes, IntBuffer offsets, int id){
+        byte[] string = new byte[offsets.get(id + 1) - offsets.get(id)];
+        for (int i = 0; i < string.length; i++) string[i] = bytes.get(offsets.get(id) + i);
+        return new String(string, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return this.n;
+    }
+
+    @Override
+    public City state(int id) {
+        return new City(string(this.names, this.nameOffsets, id), string(this.states, this.stateOffsets, id),
+            this.latitudes.get(id), this.longitudes.get(id), id);
+    }
+
+    /**
+     * Look up a city by binary searching the ids sorted by name.
+     */
+    @Override
+    public City state(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = this.n - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = this.byName.get(mid);
+            int c = GraphSnapshot.compare(bytes, this.names, this.nameOffsets.get(id), this.nameOffsets.get(id + 1));
+            if (c == 0) return this.state(id);
+            if (c < 0) high = mid - 1;
+            else low = mid + 1;
+        }
+        return null;
+    }
+
+    @Override
+    public int degree(int id) {
+        return this.offsets.get(id + 1) - this.offsets.get(id);
+    }
+
+    @Override
+    public int neighbor(int id, int i) {
+        return this.targets.get(this.offsets.get(id) + i);
+    }
+
+    @Override
+    public float weight(int id, int i) {
+        return this.weights.get(this.offsets.get(id) + i);
+    }
+
+    @Override
+    public float distance(int from, int to) {
+        return this.metric.distance(from, to);
+    }
+
+    @Override
+    public Metric metric() {
+        return this.metric;
+    }
+}
+
+/**
+ * A graph of cities read from the data files straight into direct buffers, for graphs too big to keep on the heap as
+ * City objects. The coordinates, the links (laid out and ordered exactly as in {@link Graph}), the names and states
+ * with their offsets, and a hash table from names to ids all live outside the heap, so the heap only has to hold the
+ * searches' own bookkeeping. City objects are only created when one is asked for, as with {@link MappedGraph}.
+ * <p>
+ * Direct buffers count against {@code -XX:MaxDirectMemorySize} rather than {@code -Xmx}; it defaults to the size of
+ * the heap, so a small heap needs it raised. Every section is indexed by int, so a graph can have at most 2^29 links
+ * (routes count twice, once in each direction) and 2 GiB of names.
+ */
+class OffHeapGraph implements CitySpace {
+    private int n;
+    private ByteBuffer nameOffsets = direct(1 << 16);
+    private ByteBuffer stateOffsets = direct(1 << 16);
+    private ByteBuffer names = direct(1 << 16);
+    private ByteBuffer states = direct(1 << 16);
+    private ByteBuffer latitudes = direct(1 << 16);
+    private ByteBuffer longitudes = direct(1 << 16);
+    private ByteBuffer slots = direct(1 << 16);
+    private ByteBuffer ends = direct(1 << 16);
+    private ByteBuffer offsets;
+    private ByteBuffer targets;
+    private ByteBuffer weights;
+    private final Metric metric;
+
+    /**
+     * Read the graph.
+     * @param parser Reads the data files.
+     * @param cityFile The city file.
+     * @param routeFile The route file.
+     * @param metric The name of the metric to measure distances with.
+     * @throws IOException If the files can't be read.
+     */
+    OffHeapGraph(DataFileParser parser, Path cityFile, Path routeFile, String metric) throws IOException {
+        this.nameOffsets.putInt(0);
+        this.stateOffsets.putInt(0);
+        parser.scanCities(cityFile, this::add);
+        this.metric = Metric.of(metric, floats(this.latitudes), floats(this.longitudes));
+
+        parser.scanRoutes(routeFile, this::find, end -> (this.ends = reserve(this.ends, 4)).putInt(end));
+        this.link(this.ends.position() / 4);
+        this.ends = null;
+    }
+
+    private static ByteBuffer direct(int bytes){
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * View what has been put in a buffer as floats.
+     */
+    private static FloatBuffer floats(ByteBuffer buffer){
+        ByteBuffer written = buffer.duplicate();
+        written.flip();
+        return written.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Make room for more at the end of a buffer, moving it into one twice the size if it is full.
+     * @param buffer The buffer, with its position at the end of what it holds.
+     * @param bytes How much room is needed.
+     * @return The buffer, or the bigger one it was moved into.
+     */
+    private static ByteBuffer reserve(ByteBuffer buffer, int bytes){
+        if (buffer.remaining() >= bytes) return buffer;
+        long capacity = Math.max(2L * buffer.capacity(), (long) buffer.position() + bytes);
+        if (capacity > Integer.MAX_VALUE) throw new IllegalStateException("Graph is too big to index by int");
+        ByteBuffer bigger = direct((int) capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Add a city, unless there already is one with the same name.
+     */
+    private boolean add(String name, String state, float latitude, float longitude){
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (this.find(ByteBuffer.wrap(nameBytes), 0, nameBytes.length) >= 0) return false;
+        byte[] stateBytes = state.getBytes(StandardCharsets.UTF_8);
+
+        (this.names = reserve(this.names, nameBytes.length)).put(nameBytes);
+        (this.states = reserve(this.states, stateBytes.length)).put(stateBytes);
+        (this.nameOffsets = reserve(this.nameOffsets, 4)).putInt(this.names.position());
+        (this.stateOffsets = reserve(this.stateOffsets, 4)).putInt(this.states.position());
+        (this.latitudes = reserve(this.latitudes, 4)).putFloat(latitude);
+        (this.longitudes = reserve(this.longitudes, 4)).putFloat(longitude);
+        this.n++;
+
+        // Keep the hash table at most half full
+        if (2 * this.n > this.slots.capacity() / 4) {
+            this.slots = direct(this.slots.capacity() * 2);
+            for (int id = 0; id < this.n; id++) this.place(id);
+        } else {
+            this.place(this.n - 1);
+        }
+        return true;
+    }
+
+    /**
+     * Put a city in the first free slot of the hash table from the hash of its name. Slots hold an id plus one, so
+     * that the zeros a direct buffer starts out with are free.
+     */
+    private void place(int id){
+        int mask = this.slots.capacity() / 4 - 1;
+        int slot = NameTable.hash(this.names, this.nameOffsets.getInt(4 * id), this.nameOffsets.getInt(4 * id + 4));
+        for (slot &= mask; this.slots.getInt(4 * slot) != 0; slot = (slot + 1) & mask);
+        this.slots.putInt(4 * slot, id + 1);
+    }
+
+    /**
+     * Find the id of a city from its name in a buffer.
+     * @return The id, or -1 if there is no city with that name.
+     */
+    private int find(ByteBuffer buffer, int from, int to){
+        int mask = this.slots.capacity() / 4 - 1;
+        for (int slot = NameTable.hash(buffer, from, to) & mask; ; slot = (slot + 1) & mask) {
+            int id = this.slots.getInt(4 * slot) - 1;
+            if (id < 0) return -1;
+            if (compare(id, buffer, from, to) == 0) return id;
+        }
+    }
+
+    /**
+     * Compare the name of a city to a name in a buffer, byte by byte as unsigned values.
+     */
+    private int compare(int id, ByteBuffer buffer, int from, int to){
+        int start = this.nameOffsets.getInt(4 * id);
+        int length = this.nameOffsets.getInt(4 * id + 4) - start;
+        for (int i = 0; i < Math.min(length, to - from); i++) {
+            int c = Integer.compare(this.names.get(start + i) & 0xff, buffer.get(from + i) & 0xff);
+            if (c != 0) return c;
+        }
+        return Integer.compare(length, to - from);
+    }
+
+    /**
+     * Lay the routes out as links by source, each city's sorted by the name of the neighbor with duplicates dropped,
+     * and precompute their step costs.
+     * @param count The number of route ends, two per route.
+     */
+    private void link(int count){
+        if ((long) count * 4 > Integer.MAX_VALUE) throw new IllegalStateException("Graph is too big to index by int");
+        ByteBuffer fill = direct(4 * this.n + 4);
+        for (int e = 0; e < count; e++) {
+            int from = this.ends.getInt(4 * e);
+            fill.putInt(4 * from, fill.getInt(4 * from) + 1);
+        }
+        for (int i = 0, start = 0; i < this.n; i++) {
+            int degree = fill.getInt(4 * i);
+            fill.putInt(4 * i, start);
+            start += degree;
+        }
+        this.targets = direct(4 * count);
+        for (int e = 0; e < count; e++) {
+            int from = this.ends.getInt(4 * e);
+            int to = this.ends.getInt(4 * (e ^ 1));
+            int at = fill.getInt(4 * from);
+            this.targets.putInt(4 * at, to);
+            fill.putInt(4 * from, at + 1);
+        }
+
+        // Each city's slice now ends where the next one starts, so the slices can be compacted in place.
+        this.offsets = direct(4 * this.n + 4);
+        int links = 0;
+        for (int i = 0, start = 0; i < this.n; i++) {
+            int end = fill.getInt(4 * i);
+            this.sortByName(start, end);
+            for (int e = start; e < end; e++) {
+                int target = this.targets.getInt(4 * e);
+                if (e > start && target == this.targets.getInt(4 * (e - 1))) continue;
+                this.targets.putInt(4 * links++, target);
+            }
+            this.offsets.putInt(4 * i + 4, links);
+            start = end;
+        }
+
+        this.weights = direct(4 * links);
+        for (int i = 0; i < this.n; i++) {
+            for (int e = this.offsets.getInt(4 * i); e < this.offsets.getInt(4 * i + 4); e++) {
+                this.weights.putFloat(4 * e, this.distance(i, this.targets.getInt(4 * e)));
+            }
+        }
+    }
+
+    /**
+     * Heap sort a range of the link targets by the names of the cities, in place so that no slice of the links ever
+     * has to be copied onto the heap, however many there are.
+     */
+    private void sortByName(int from, int to){
+        for (int i = (to - from) / 2 - 1; i >= 0; i--) this.siftDown(from, i, to - from);
+        for (int size = to - from - 1; size > 0; size--) {
+            int top = this.targets.getInt(4 * from);
+            this.targets.putInt(4 * from, this.targets.getInt(4 * (from + size)));
+            this.targets.putInt(4 * (from + size), top);
+            this.siftDown(from, 0, size);
+        }
+    }
+
+    private void siftDown(int from, int i, int size){
+        int id = this.targets.getInt(4 * (from + i));
+        for (int child = 2 * i + 1; child < size; child = 2 * i + 1) {
+            int larger = this.targets.getInt(4 * (from + child));
+            if (child + 1 < size && this.byName(this.targets.getInt(4 * (from + child + 1)), larger) > 0) {
+                larger = this.targets.getInt(4 * (from + ++child));
+            }
+            if (this.byName(larger, id) <= 0) break;
+            this.targets.putInt(4 * (from + i), larger);
+            i = child;
+        }
+        this.targets.putInt(4 * (from + i), id);
+    }
+
+    private int byName(int a, int b){
+        return this.compare(a, this.names, this.nameOffsets.getInt(4 * b), this.nameOffsets.getInt(4 * b + 4));
+    }
+
+    private String string(ByteBuffer bytes, ByteBuffer offsets, int id){
+        byte[] string = new byte[offsets.getInt(4 * id + 4) - offsets.getInt(4 * id)];
+        for (int i = 0; i < string.length; i++) string[i] = bytes.get(offsets.getInt(4 * id) + i);
+        return new String(string, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int size() {
+        return this.n;
+    }
+
+    @Override
+    public City state(int id) {
+        return new City(string(this.names, this.nameOffsets, id), string(this.states, this.stateOffsets, id),
+            this.latitudes.getFloat(4 * id), this.longitudes.getFloat(4 * id), id);
+    }
+
+    @Override
+    public City state(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int id = this.find(ByteBuffer.wrap(bytes), 0, bytes.length);
+        return id < 0 ? null : this.state(id);
+    }
+
+    @Override
+    public int degree(int id) {
+        return this.offsets.getInt(4 * id + 4) - this.offsets.getInt(4 * id);
+    }
+
+    @Override
+    public int neighbor(int id, int i) {
+        return this.targets.getInt(4 * (this.offsets.getInt(4 * id) + i));
+    }
+
+    @Override
+    public float weight(int id, int i) {
+        return this.weights.getFloat(4 * (this.offsets.getInt(4 * id) + i));
+    }
+
+    @Override
+    public float distance(int from, int to) {
+        return this.metric.distance(from, to);
+    }
+
+    @Override
+    public Metric metric() {
+        return this.metric;
+    }
+}
+
+/**
+ * A k-d tree over the cities, for finding the cities nearest to a point, or within some distance of it, without looking
+ * at every city. Distances are measured with the graph's {@link Metric}: the tree is over the points the metric places
+ * the cities at, where straight lines order pairs of cities the same way the metric does. The tree is implicit: the
+ * cities are sorted so that the median of every range, along each coordinate in turn, sits in the middle of it, with
+ * the cities before it on one side of the split and the ones after it on the other, down to leaves of at most
+ * {@link #LEAF_SIZE} cities that are measured in one go with {@link Metric#distances}. The tree is only built the first
+ * time it is searched, so a server that is never asked about points never reads where the cities are.
+ */
+class SpatialIndex {
+
+    /**
+     * The most cities in a range that is not split any further.
+     */
+    static final int LEAF_SIZE = 16;
+
+    private final Metric metric;
+    private final int dimensions;
+    private final int size;
+    private int[] ids;
+    private float[][] points;
+    private volatile boolean built;
+
+    /**
+     * Create the index, to be built when it is first searched.
+     * @param metric The metric, which knows where every city is.
+     * @param n The number of cities.
+     */
+    SpatialIndex(Metric metric, int n){
+        this.metric = metric;
+        this.dimensions = metric.dimensions();
+        this.size = n;
+    }
+
+    /**
+     * Build the tree, unless some thread already has.
+     */
+    private void build(){
+        if (this.built) return;
+        synchronized (this) {
+            if (this.built) return;
+            this.ids = new int[this.size];
+            for (int i = 0; i < this.size; i++) this.ids[i] = i;
+            this.points = this.metric.points(this.size);
+            this.build(0, this.size, 0);
+            this.built = true;
+        }
+    }
+
+    private void build(int from, int to, int axis){
+        if (to - from <= LEAF_SIZE) return;
+        int middle = (from + to) >>> 1;
+        this.select(from, to - 1, middle, axis);
+        this.build(from, middle, (axis + 1) % this.dimensions);
+        this.build(middle + 1, to, (axis + 1) % this.dimensions);
+    }
+
+    /**
+     * Quickselect: reorder a range so that the k-th smallest coordinate is at k, with nothing bigger before it and
+     * nothing smaller after it.
+     */
+    private void select(int low, int high, int k, int axis){
+        float[] points = this.points[axis];
+        while (low < high) {
+            float pivot = points[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (points[i] < pivot) i++;
+                while (points[j] > pivot) j--;
+                if (i <= j) this.swap(i++, j--);
+            }
+            if (k <= j) high = j;
+            else if (k >= i) low = i;
+            else return;
+        }
+    }
+
+    private void swap(int i, int j){
+        int id = this.ids[i];
+        this.ids[i] = this.ids[j];
+        this.ids[j] = id;
+        for (float[] points : this.points) {
+            float coordinate = points[i];
+            points[i] = points[j];
+            points[j] = coordinate;
+        }
+    }
+
+    /**
+     * Measure the distance from a point to a city, the way the index ranks the cities.
+     * @return The distance, in miles.
+     */
+    float distance(float latitude, float longitude, int id){
+        return this.metric.distance(latitude, longitude, id);
+    }
+
+    /**
+     * Find the city nearest to a point.
+     * @return The id of the city, or -1 if there are no cities.
+     */
+    int nearest(float latitude, float longitude){
+        int[] nearest = this.nearest(latitude, longitude, 1);
+        return nearest.length == 0 ? -1 : nearest[0];
+    }
+
+    /**
+     * Find the cities nearest to a point.
+     * @param k How many cities to find.
+     * @return The ids of the k nearest cities, or all of them if there are fewer, nearest first.
+     */
+    int[] nearest(float latitude, float longitude, int k){
+        this.build();
+        Neighbors neighbors = new Neighbors(Math.max(0, Math.min(k, this.size)), Float.POSITIVE_INFINITY);
+        this.search(0, this.size, 0, this.place(latitude, longitude), neighbors, new float[LEAF_SIZE]);
+        return neighbors.sorted();
+    }
+
+    /**
+     * Find the cities within some distance of a point.
+     * @param radius The distance, in miles.
+     * @return The ids of the cities, nearest first.
+     */
+    int[] within(float latitude, float longitude, float radius){
+        this.build();
+        Neighbors neighbors = new Neighbors(this.size, radius);
+        this.search(0, this.size, 0, this.place(latitude, longitude), neighbors, new float[LEAF_SIZE]);
+        return neighbors.sorted();
+    }
+
+    private float[] place(float latitude, float longitude){
+        float[] point = new float[this.dimensions];
+        this.metric.place(latitude, longitude, point, 0);
+        return point;
+    }
+
+    /**
+     * @param distances Room for the distances to the cities of a leaf.
+     */
+    private void search(int from, int to, int axis, float[] point, Neighbors neighbors, float[] distances){
+        int d = this.dimensions;
+        while (from < to) {
+            if (to - from <= LEAF_SIZE) {
+                this.metric.distances(point, this.points, from, to, distances);
+                for (int i = from; i < to; i++) neighbors.offer(this.ids[i], distances[i - from]);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            this.metric.distances(point, this.points, middle, middle + 1, distances);
+            neighbors.offer(this.ids[middle], distances[0]);
+
+            // Go down the side of the split the point is on, then the other side if it can hold anything nearer. The
+            // near side is the recursive call so that the far side, often skipped, is the loop.
+            float split = this.points[axis][middle] - point[axis];
+            boolean nearIsLow = split > 0;
+            int next = (axis + 1) % d;
+            if (nearIsLow) this.search(from, middle, next, point, neighbors, distances);
+            else this.search(middle + 1, to, next, point, neighbors, distances);
+            if (this.metric.length(split * split) > neighbors.bound()) return;
+            if (nearIsLow) from = middle + 1;
+            else to = middle;
+            axis = next;
+        }
+    }
+
+    /**
+     * The nearest cities found so far, as a max-heap of distances so that the farthest is the one replaced, holding at
+     * most a fixed number of cities, and only ones within a fixed distance.
+     */
+    private static class Neighbors {
+        private final int capacity;
+        private final float limit;
+        private int[] ids = new int[16];
+        private float[] distances = new float[16];
+        private int size;
+
+        Neighbors(int capacity, float limit){
+            this.capacity = capacity;
+            this.limit = limit;
+        }
+
+        /**
+         * The distance a city has to beat to get in.
+         */
+        float bound(){
+            return this.size < this.capacity ? this.limit : this.distances[0];
+        }
+
+        void offer(int id, float distance){
+            float bound = this.bound();
+            if (this.capacity == 0 || distance > bound || this.size == this.capacity && distance == bound) return;
+            if (this.size < this.capacity) {
+                if (this.size == this.ids.length) {
+                    this.ids = Arrays.copyOf(this.ids, 2 * this.size);
+                    this.distances = Arrays.copyOf(this.distances, 2 * this.size);
+                }
+                this.siftUp(this.size++, id, distance);
+            } else {
+                this.siftDown(0, id, distance);
+            }
+        }
+
+        private void siftUp(int i, int id, float distance){
+            while (i > 0 && this.distances[(i - 1) >>> 1] < distance) {
+                int parent = (i - 1) >>> 1;
+                this.ids[i] = this.ids[parent];
+                this.distances[i] = this.distances[parent];
+                i = parent;
+            }
+            this.ids[i] = id;
+            this.distances[i] = distance;
+        }
+
+        private void siftDown(int i, int id, float distance){
+            for (int child = 2 * i + 1; child < this.size; i = child, child = 2 * i + 1) {
+                if (child + 1 < this.size && this.distances[child + 1] > this.distances[child]) child++;
+                if (this.distances[child] <= distance) break;
+                this.ids[i] = this.ids[child];
+                this.distances[i] = this.distances[child];
+            }
+            this.ids[i] = id;
+            this.distances[i] = distance;
+        }
+
+        /**
+         * @return The ids, nearest first, ties broken by id.
+         */
+        int[] sorted(){
+            long[] keyed = new long[this.size];
+            for (int i = 0; i < this.size; i++) {
+                // Non-negative floats sort the same way as their bits
+                keyed[i] = (long) Float.floatToIntBits(this.distances[i]) << 32 | this.ids[i];
+            }
+            Arrays.sort(keyed);
+            int[] sorted = new int[this.size];
+            for (int i = 0; i < this.size; i++) sorted[i] = (int) keyed[i];
+            return sorted;
+        }
+    }
+}
+
+/**
+ * A growable list of ints, for collecting ids without boxing them.
+ */
+class IntList {
+    private int[] values;
+    private int size;
+
+    IntList(){
+        this(16);
+    }
+
+    IntList(int capacity){
+        this.values = new int[Math.max(capacity, 1)];
+    }
+
+    void add(int value){
+        if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+        this.values[this.size++] = value;
+    }
+
+    int get(int i){
+        return this.values[i];
+    }
+
+    void set(int i, int value){
+        this.values[i] = value;
+    }
+
+    int size(){
+        return this.size;
+    }
+
+    void clear(){
+        this.size = 0;
+    }
+
+    /**
+     * Drop every value from a position onwards.
+     * @param size The number of values to keep.
+     */
+    void truncate(int size){
+        this.size = size;
+    }
+
+    int[] toArray(){
+        return Arrays.copyOf(this.values, this.size);
+    }
+}
+
+/**
+ * A growable binary min-heap of longs. Packing a key into the high half and an id into the low half makes it a priority
+ * queue of ids without an object per entry.
+ */
+class LongHeap {
+    private long[] values = new long[16];
+    private int size;
+
+    boolean isEmpty(){
+        return this.size == 0;
+    }
+
+    int size(){
+        return this.size;
+    }
+
+    long peek(){
+        return this.values[0];
+    }
+
+    void add(long value){
+        if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+        int i = this.size++;
+        while (i > 0 && this.values[(i - 1) >>> 1] > value) {
+            this.values[i] = this.values[(i - 1) >>> 1];
+            i = (i - 1) >>> 1;
+        }
+        this.values[i] = value;
+    }
+
+    long poll(){
+        long top = this.values[0];
+        long last = this.values[--this.size];
+        int i = 0;
+        for (int child = 1; child < this.size; i = child, child = 2 * i + 1) {
+            if (child + 1 < this.size && this.values[child + 1] < this.values[child]) child++;
+            if (this.values[child] >= last) break;
+            this.values[i] = this.values[child];
+        }
+        this.values[i] = last;
+        return top;
+    }
+}
+
+/**
+ * A contraction hierarchy over a statespace whose step costs are the same in both directions. States are contracted
+ * one at a time, least important first: a contracted state is taken out of the graph, and shortcuts are added between
+ * its remaining neighbors wherever the path through it was the only shortest one. What is kept is the upward graph, in
+ * which every state only links to states contracted after it. Any shortest path then climbs from the start and
+ * descends to the end, so a query only has to search upward from both ends until they meet.
+ *
+ * The upward links are stored in compressed sparse row form like {@link Graph}. A link whose middle is not -1 is a
+ * shortcut for the path from its source to the middle state and on to its target, and both halves are upward links of
+ * the middle state.
+ */
+class ContractionHierarchy {
+    private static final int MAGIC = 0x43484958;
+    private static final int VERSION = 1;
+
+    /**
+     * Witness searches give up after settling this many states, and the shortcut is added just in case.
+     */
+    private static final int WITNESS_LIMIT = 500;
+
+    final int[] rank;
+    final int[] offsets;
+    final int[] targets;
+    final float[] weights;
+    final int[] middles;
+    final long fingerprint;
+
+    private ContractionHierarchy(int[] rank, int[] offsets, int[] targets, float[] weights, int[] middles,
+                                 long fingerprint){
+        this.rank = rank;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.middles = middles;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Contract every state of a statespace.
+     * @param stateSpace The statespace.
+     * @return The hierarchy.
+     */
+    static ContractionHierarchy build(StateSpace<?> stateSpace){
+        return new Contractor(stateSpace).contractAll();
+    }
+
+    /**
+     * Load a hierarchy that was written by {@link #write}.
+     * @param file The file to read.
+     * @return The hierarchy.
+     * @throws IOException If the file can't be read or is not a hierarchy.
+     */
+    static ContractionHierarchy read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException(file + " is not a contraction hierarchy");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException(file + " has unsupported version " + version);
+            long fingerprint = in.readLong();
+            int n = in.readInt();
+            int m = in.readInt();
+            int[] rank = new int[n];
+            int[] offsets = new int[n + 1];
+            int[] targets = new int[m];
+            float[] weights = new float[m];
+            int[] middles = new int[m];
+            for (int i = 0; i < n; i++) rank[i] = in.readInt();
+            for (int i = 0; i <= n; i++) offsets[i] = in.readInt();
+            for (int e = 0; e < m; e++) targets[e] = in.readInt();
+            for (int e = 0; e < m; e++) weights[e] = in.readFloat();
+            for (int e = 0; e < m; e++) middles[e] = in.readInt();
+            return new ContractionHierarchy(rank, offsets, targets, weights, middles, fingerprint);
+        }
+    }
+
+    /**
+     * Save this hierarchy so that it can be loaded instead of built next time.
+     * @param file The file to write.
+     * @throws IOException If the file can't be written.
+     */
+    void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.fingerprint);
+            out.writeInt(this.rank.length);
+            out.writeInt(this.targets.length);
+            for (int r : this.rank) out.writeInt(r);
+            for (int o : this.offsets) out.writeInt(o);
+            for (int t : this.targets) out.writeInt(t);
+            for (float w : this.weights) out.writeFloat(w);
+            for (int m : this.middles) out.writeInt(m);
+        }
+    }
+
+    /**
+     * Hash the shape and step costs of a statespace, so that a saved hierarchy can be checked against the statespace
+     * it is about to be used with.
+     * @param stateSpace The statespace.
+     * @return The hash.
+     */
+    static long fingerprint(StateSpace<?> stateSpace){
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ stateSpace.size()) * 0x100000001b3L;
+        for (int state = 0; state < stateSpace.size(); state++) {
+            Adjacency routes = stateSpace.adjacency(state);
+            for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                hash = (hash ^ state) * 0x100000001b3L;
+                hash = (hash ^ routes.target(i)) * 0x100000001b3L;
+                hash = (hash ^ Float.floatToIntBits(routes.weight(i))) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Determine if this hierarchy was built from a statespace.
+     * @param stateSpace The statespace.
+     * @return True if the statespace has the same shape and step costs as the one this was built from.
+     */
+    boolean matches(StateSpace<?> stateSpace){
+        return this.rank.length == stateSpace.size() && this.fingerprint == fingerprint(stateSpace);
+    }
+
+    /**
+     * Find the upward link between two states.
+     * @param lower The state that was contracted first.
+     * @param higher The state that was contracted later.
+     * @return The index of the link, or -1 if they are not linked.
+     */
+    int link(int lower, int higher){
+        for (int e = this.offsets[lower]; e < this.offsets[lower + 1]; e++) {
+            if (this.targets[e] == higher) return e;
+        }
+        return -1;
+    }
+
+    /**
+     * Expand the link between two states into the states along the original path, in order from the first state to
+     * the second.
+     * @param from The state to start at. Not included in the output.
+     * @param to The state to end at.
+     * @param path Collects the states.
+     * @param length The length of the path up to the first state.
+     * @return The length of the path up to the second state, summed step by step.
+     */
+    float unpack(int from, int to, IntList path, float length){
+        IntList stack = new IntList();
+        stack.add(from);
+        stack.add(to);
+        while (stack.size() > 0) {
+            int b = stack.get(stack.size() - 1);
+            int a = stack.get(stack.size() - 2);
+            stack.truncate(stack.size() - 2);
+            int e = this.rank[a] < this.rank[b] ? this.link(a, b) : this.link(b, a);
+            int middle = this.middles[e];
+            if (middle < 0) {
+                path.add(b);
+                length += this.weights[e];
+            } else {
+                stack.add(middle);
+                stack.add(b);
+                stack.add(a);
+                stack.add(middle);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Does the contracting. Keeps the remaining graph as growable adjacency lists, and reuses the arrays for the
+     * witness searches between contractions.
+     */
+    private static class Contractor {
+        private final StateSpace<?> stateSpace;
+        private final int n;
+        private final int[][] neighbors;
+        private final float[][] weights;
+        private final int[][] middles;
+        private final int[] degrees;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors;
+
+        private final int[][] upTargets;
+        private final float[][] upWeights;
+        private final int[][] upMiddles;
+
+        private final float[] distance;
+        private final int[] stamps;
+        private int generation;
+        private final IndexedHeap witnessFrontier;
+
+        Contractor(StateSpace<?> stateSpace){
+            this.stateSpace = stateSpace;
+            this.n = stateSpace.size();
+            this.neighbors = new int[this.n][];
+            this.weights = new float[this.n][];
+            this.middles = new int[this.n][];
+            this.degrees = new int[this.n];
+            this.contracted = new boolean[this.n];
+            this.contractedNeighbors = new int[this.n];
+            this.upTargets = new int[this.n][];
+            this.upWeights = new float[this.n][];
+            this.upMiddles = new int[this.n][];
+            this.distance = new float[this.n];
+            this.stamps = new int[this.n];
+            this.witnessFrontier = new IndexedHeap(this.n);
+
+            for (int v = 0; v < this.n; v++) {
+                int degree = stateSpace.degree(v);
+                this.neighbors[v] = new int[Math.max(degree, 1)];
+                this.weights[v] = new float[Math.max(degree, 1)];
+                this.middles[v] = new int[Math.max(degree, 1)];
+                for (int i = 0; i < degree; i++) {
+                    this.neighbors[v][i] = stateSpace.neighbor(v, i);
+                    this.weights[v][i] = stateSpace.weight(v, i);
+                    this.middles[v][i] = -1;
+                }
+                this.degrees[v] = degree;
+            }
+        }
+
+        ContractionHierarchy contractAll(){
+            IndexedHeap queue = new IndexedHeap(this.n);
+            for (int v = 0; v < this.n; v++) queue.offer(v, this.priority(v), v);
+
+            int[] rank = new int[this.n];
+            int order = 0;
+            while (!queue.isEmpty()) {
+                // Priorities go stale as neighbors are contracted, so recheck before committing to the top one.
+                int v = queue.poll();
+                float priority = this.priority(v);
+                if (!queue.isEmpty() && priority > queue.key(queue.peek())) {
+                    queue.offer(v, priority, v);
+                    continue;
+                }
+
+                this.contract(v);
+                rank[v] = order++;
+                for (int i = 0; i < this.degrees[v]; i++) {
+                    int u = this.neighbors[v][i];
+                    if (this.contracted[u]) continue;
+                    this.contractedNeighbors[u]++;
+                    queue.offer(u, this.priority(u), u);
+                }
+            }
+
+            int[] offsets = new int[this.n + 1];
+            for (int v = 0; v < this.n; v++) offsets[v + 1] = offsets[v] + this.upTargets[v].length;
+            int m = offsets[this.n];
+            int[] targets = new int[m];
+            float[] weights = new float[m];
+            int[] middles = new int[m];
+            for (int v = 0; v < this.n; v++) {
+                System.arraycopy(this.upTargets[v], 0, targets, offsets[v], this.upTargets[v].length);
+                System.arraycopy(this.upWeights[v], 0, weights, offsets[v], this.upWeights[v].length);
+                System.arraycopy(this.upMiddles[v], 0, middles, offsets[v], this.upMiddles[v].length);
+            }
+            return new ContractionHierarchy(rank, offsets, targets, weights, middles, fingerprint(this.stateSpace));
+        }
+
+        /**
+         * How soon a state should be contracted. Prefers states that add few shortcuts for the links they remove,
+         * and states whose neighbors have not been contracted much yet, which keeps the hierarchy even.
+         */
+        private float priority(int v){
+            int remaining = 0;
+            for (int i = 0; i < this.degrees[v]; i++) {
+                if (!this.contracted[this.neighbors[v][i]]) remaining++;
+            }
+            return this.shortcuts(v, false) - remaining + this.contractedNeighbors[v];
+        }
+
+        private void contract(int v){
+            this.shortcuts(v, true);
+
+            IntList up = new IntList();
+            for (int i = 0; i < this.degrees[v]; i++) {
+                if (!this.contracted[this.neighbors[v][i]]) up.add(i);
+            }
+            this.upTargets[v] = new int[up.size()];
+            this.upWeights[v] = new float[up.size()];
+            this.upMiddles[v] = new int[up.size()];
+            for (int k = 0; k < up.size(); k++) {
+                int i = up.get(k);
+                this.upTargets[v][k] = this.neighbors[v][i];
+                this.upWeights[v][k] = this.weights[v][i];
+                this.upMiddles[v][k] = this.middles[v][i];
+            }
+            this.contracted[v] = true;
+        }
+
+        /**
+         * Work out which shortcuts contracting a state needs: one for each pair of its remaining neighbors that has
+         * no path between them, avoiding the state, at most as long as the path through it.
+         * @param v The state.
+         * @param add Whether to add the shortcuts, or just count them.
+         * @return The number of shortcuts.
+         */
+        private int shortcuts(int v, boolean add){
+            int count = 0;
+            for (int i = 0; i < this.degrees[v]; i++) {
+                int u = this.neighbors[v][i];
+                if (this.contracted[u]) continue;
+
+                // Coincident cities make for via paths of length 0, which still need their shortcuts.
+                boolean any = false;
+                float furthest = 0;
+                for (int j = i + 1; j < this.degrees[v]; j++) {
+                    if (this.contracted[this.neighbors[v][j]]) continue;
+                    any = true;
+                    furthest = Math.max(furthest, this.weights[v][i] + this.weights[v][j]);
+                }
+                if (!any) continue;
+
+                this.witnessSearch(u, v, furthest);
+                for (int j = i + 1; j < this.degrees[v]; j++) {
+                    int w = this.neighbors[v][j];
+                    if (this.contracted[w]) continue;
+                    float via = this.weights[v][i] + this.weights[v][j];
+                    if (this.distanceTo(w) <= via) continue;
+                    count++;
+                    if (add) {
+                        this.link(u, w, via, v);
+                        this.link(w, u, via, v);
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Find the distances from a state to the states around it in the remaining graph, without going through the
+         * state that is being contracted.
+         */
+        private void witnessSearch(int source, int avoid, float limit){
+            if (++this.generation == 0) {
+                Arrays.fill(this.stamps, 0);
+                this.generation = 1;
+            }
+            this.witnessFrontier.clear();
+            this.stamps[source] = this.generation;
+            this.distance[source] = 0;
+            this.witnessFrontier.offer(source, 0, 0);
+
+            int settled = 0;
+            while (!this.witnessFrontier.isEmpty() && settled++ < WITNESS_LIMIT) {
+                int x = this.witnessFrontier.poll();
+                if (this.distance[x] > limit) break;
+                for (int i = 0; i < this.degrees[x]; i++) {
+                    int y = this.neighbors[x][i];
+                    if (y == avoid || this.contracted[y]) continue;
+                    float g = this.distance[x] + this.weights[x][i];
+                    if (g < this.distanceTo(y)) {
+                        this.stamps[y] = this.generation;
+                        this.distance[y] = g;
+                        this.witnessFrontier.offer(y, g, 0);
+                    }
+                }
+            }
+        }
+
+        private float distanceTo(int state){
+            return this.stamps[state] == this.generation ? this.distance[state] : Float.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Add a shortcut, or shorten the existing link if the shortcut is shorter.
+         */
+        private void link(int from, int to, float weight, int middle){
+            for (int i = 0; i < this.degrees[from]; i++) {
+                if (this.neighbors[from][i] != to) continue;
+                if (weight < this.weights[from][i]) {
+                    this.weights[from][i] = weight;
+                    this.middles[from][i] = middle;
+                }
+                return;
+            }
+            int i = this.degrees[from]++;
+            if (i == this.neighbors[from].length) {
+                this.neighbors[from] = Arrays.copyOf(this.neighbors[from], i * 2);
+                this.weights[from] = Arrays.copyOf(this.weights[from], i * 2);
+                this.middles[from] = Arrays.copyOf(this.middles[from], i * 2);
+            }
+            this.neighbors[from][i] = to;
+            this.weights[from][i] = weight;
+            this.middles[from][i] = middle;
+        }
+    }
+}
+
+/**
+ * The work one search took: how many search nodes it generated and expanded, how many states it expanded more than
+ * once, the most nodes it had on its frontier at once, how long it took and, if measuring that is switched on and the
+ * JVM supports it, how many bytes it allocated. The algorithms count the nodes; the timing is taken care of for them.
+ */
+class SearchStatistics {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Whether to measure allocations. Asking the JVM is cheap but not free, so it is off unless statistics are wanted.
+     */
+    static volatile boolean measureAllocations = false;
+
+    int generated;
+    int expanded;
+    int reexpanded;
+    int peakFrontier;
+    long nanos;
+    long allocatedBytes = -1;
+
+    private final long began;
+    private final long allocatedBefore;
+
+    /**
+     * Start counting, and the clock.
+     */
+    SearchStatistics(){
+        this.allocatedBefore = measureAllocations ? allocatedBytes() : -1;
+        this.began = System.nanoTime();
+    }
+
+    /**
+     * Note the size of the frontier.
+     * @param size The number of nodes on the frontier.
+     */
+    void frontier(int size){
+        if (size > this.peakFrontier) this.peakFrontier = size;
+    }
+
+    /**
+     * Count the nodes of another search as part of this one.
+     * @param other The statistics of the other search.
+     */
+    void add(SearchStatistics other){
+        this.generated += other.generated;
+        this.expanded += other.expanded;
+        this.reexpanded += other.reexpanded;
+        this.peakFrontier = Math.max(this.peakFrontier, other.peakFrontier);
+    }
+
+    /**
+     * Stop the clock.
+     */
+    void stop(){
+        this.nanos = System.nanoTime() - this.began;
+        if (this.allocatedBefore >= 0) this.allocatedBytes = allocatedBytes() - this.allocatedBefore;
+    }
+
+    private static long allocatedBytes(){
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        if (!threads.isThreadAllocatedMemoryEnabled()) return -1;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Override
+    public String toString() {
+        return "Generated " + this.generated + " nodes and expanded " + this.expanded + " (" + this.reexpanded
+            + " of them again), with at most " + this.peakFrontier + " on the frontier, in "
+            + String.format(Locale.ROOT, "%.3f", this.nanos / 1e6) + " ms"
+            + (this.allocatedBytes < 0 ? "" : ", allocating " + this.allocatedBytes + " bytes") + ".\n";
+    }
+}
+
+/**
+ * Reports the statistics of every search in one of three formats: {@code text}, a line after each report;
+ * {@code json}, one JSON object per search, on its own line, to a separate stream; or {@code prometheus}, added up per
+ * algorithm, in the Prometheus text exposition format, at the end. The totals are kept whatever the format, so that
+ * {@link #prometheus()} can be asked for at any time. Safe to share between threads.
+ */
+class StatisticsReporter {
+    static final List<String> FORMATS = Arrays.asList("text", "json", "prometheus");
+
+    private static final String[][] COUNTERS = {
+        {"search_queries_total", "Searches run."},
+        {"search_paths_found_total", "Searches that found a path."},
+        {"search_nodes_generated_total", "Search nodes generated."},
+        {"search_nodes_expanded_total", "Search nodes expanded."},
+        {"search_nodes_reexpanded_total", "Search nodes expanded for a state that had already been expanded."},
+        {"search_seconds_total", "Time spent searching."},
+        {"search_allocated_bytes_total", "Bytes allocated while searching, where that could be measured."},
+    };
+
+    private final String format;
+    private final PrintStream out;
+    private final Map<String, double[]> totals = new TreeMap<>();
+    private final Map<String, Integer> peaks = new TreeMap<>();
+
+    /**
+     * @param format One of the {@link #FORMATS}.
+     * @param out Where the JSON lines go.
+     */
+    StatisticsReporter(String format, PrintStream out){
+        this.format = format;
+        this.out = out;
+    }
+
+    /**
+     * Report the statistics of one search.
+     * @param start The start of the search.
+     * @param end The end of the search.
+     * @param results The results of the search.
+     * @return What to print after the report of the search, which is nothing unless the format is {@code text}.
+     */
+    String report(City start, City end, SearchAlgorithm<City>.Results<City, SearchAlgorithm<City>> results){
+        SearchStatistics statistics = results.statistics();
+        this.add(results.getAlgorithmName(), results.found(), statistics);
+        switch (this.format) {
+            case "text":
+                return statistics.toString();
+            case "json":
+                this.out.println("{\"algorithm\":" + quote(results.getAlgorithmName())
+                    + ",\"start\":" + quote(start.name()) + ",\"end\":" + quote(end.name())
+                    + ",\"found\":" + results.found()
+                    + ",\"distance\":" + (results.found() ? String.valueOf(results.distance()) : "null")
+                    + ",\"hops\":" + (results.found() ? String.valueOf(results.hops()) : "null")
+                    + ",\"bound\":" + (results.found() && results.bound() != Float.POSITIVE_INFINITY
+                        ? String.valueOf(results.bound()) : "null")
+                    + ",\"generated\":" + statistics.generated + ",\"expanded\":" + statistics.expanded
+                    + ",\"reexpanded\":" + statistics.reexpanded + ",\"peakFrontier\":" + statistics.peakFrontier
+                    + ",\"nanos\":" + statistics.nanos
+                    + ",\"allocatedBytes\":" + (statistics.allocatedBytes < 0 ? "null" : statistics.allocatedBytes)
+                    + "}");
+                return "";
+            default:
+                return "";
+        }
+    }
+
+    private synchronized void add(String algorithm, boolean found, SearchStatistics statistics){
+        double[] totals = this.totals.computeIfAbsent(algorithm, name -> new double[COUNTERS.length]);
+        totals[0]++;
+        if (found) totals[1]++;
+        totals[2] += statistics.generated;
+        totals[3] += statistics.expanded;
+        totals[4] += statistics.reexpanded;
+        totals[5] += statistics.nanos / 1e9;
+        if (statistics.allocatedBytes >= 0) totals[6] += statistics.allocatedBytes;
+        this.peaks.merge(algorithm, statistics.peakFrontier, Math::max);
+    }
+
+    /**
+     * Write out the totals if the format is {@code prometheus}, and flush.
+     */
+    void finish(){
+        if (this.format.equals("prometheus")) this.out.print(this.prometheus());
+        this.out.flush();
+    }
+
+    /**
+     * Get everything reported so far, added up per algorithm, in the Prometheus text exposition format.
+     * @return The metrics.
+     */
+    synchronized String prometheus(){
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < COUNTERS.length; c++) {
+            sb.append("# HELP ").append(COUNTERS[c][0]).append(' ').append(COUNTERS[c][1]).append('\n');
+            sb.append("# TYPE ").append(COUNTERS[c][0]).append(" counter\n");
+            for (Map.Entry<String, double[]> entry : this.totals.entrySet()) {
+                sb.append(COUNTERS[c][0]).append("{algorithm=").append(quote(entry.getKey())).append("} ");
+                double value = entry.getValue()[c];
+                sb.append(value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value));
+                sb.append('\n');
+            }
+        }
+        sb.append("# HELP search_peak_frontier_max The most nodes any one search had on its frontier at once.\n");
+        sb.append("# TYPE search_peak_frontier_max gauge\n");
+        for (Map.Entry<String, Integer> entry : this.peaks.entrySet()) {
+            sb.append("search_peak_frontier_max{algorithm=").append(quote(entry.getKey())).append("} ")
+                .append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Quote a string for JSON, which also suits Prometheus label values.
+     */
+    private static String quote(String value){
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c < ' ') sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
+
+/**
+ * A generic search algorithm.
+ * @param <S> The type of state that makes up the statespace in which this search algorithm will search.
+ */
+abstract class SearchAlgorithm<S extends State<S>> {
+    /**
+     * Get the name of the algorithm extending this abstract search algorithm.
+     * @return The name of the search algorithm.
+     */
+    abstract String getName();
+
+    /**
+     * Executes the algorithm and returns the results.
+     * @param start The start state.
+     * @param end The end state.
+     * @return Results containing the list of hops on the path that the algorithm found, the length of the path,
+     *         and statistics on the work it took to find it.
+     */
+    final Results<S, SearchAlgorithm<S>> execute(S start, S end){
+        SearchStatistics statistics = new SearchStatistics();
+        Results<S, SearchAlgorithm<S>> results = this.search(start, end, statistics);
+        statistics.stop();
+        results.statistics = statistics;
+        return results;
+    }
+
+    /**
+     * The search itself, as implemented by each algorithm.
+     * @param start The start state.
+     * @param end The end state.
+     * @param statistics Where to count the work done. Timing is taken care of.
+     * @return Results containing the list of hops on the path that the algorithm found and the length of the path.
+     */
+    abstract Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics);
+
+    /**
+     * Determine if this algorithm always finds a shortest path. If it does, and the step costs are the same in both
+     * directions, a path it found from one state to another is, reversed, as good an answer the other way around.
+     * @return True if the paths this algorithm finds are always shortest paths.
+     */
+    boolean findsShortestPaths(){
+        return false;
+    }
+
+    final StateSpace<S> stateSpace;
+
+    /**
+     * Default constructor that implementing algorithms will call.
+     * @param stateSpace
+     */
+    SearchAlgorithm(StateSpace<S> stateSpace){
+        this.stateSpace = stateSpace;
+    }
+
+    /**
+     * Build the results from a path given as state ids.
+     * @param path The ids of the states on the path, from the start state to the end state.
+     * @param length The length of the path.
+     * @return The results.
+     */
+    Results<S, SearchAlgorithm<S>> generateResults(int[] path, float length){
+        List<S> hops = new ArrayList<>(path.length);
+        for (int state : path) hops.add(stateSpace.state(state));
+        return new Results<>(hops, length, this);
+    }
+
+    /**
+     * Build the results from a path given as state ids, which is known to be at most some factor longer than the
+     * shortest path.
+     * @param path The ids of the states on the path, from the start state to the end state.
+     * @param length The length of the path.
+     * @param bound The factor.
+     * @return The results.
+     */
+    Results<S, SearchAlgorithm<S>> generateResults(int[] path, float length, float bound){
+        Results<S, SearchAlgorithm<S>> results = this.generateResults(path, length);
+        results.bound = bound;
+        return results;
+    }
+
+    /**
+     * Build the results from the parents kept in a search context, walking back from the end state to the start
+     * state, which is its own parent.
+     * @param context The context.
+     * @param end The id of the end state.
+     * @return The results.
+     */
+    Results<S, SearchAlgorithm<S>> generateResults(SearchContext context, int end){
+        int hops = 0;
+        for (int state = end; context.parent[state] != state; state = context.parent[state]) hops++;
+        S[] path = this.hops(hops);
+        for (int state = end; hops >= 0; state = context.parent[state]) path[hops--] = stateSpace.state(state);
+        return new Results<>(Arrays.asList(path), context.g[end], this);
+    }
+
+    /**
+     * Build the results from the parents kept in the search contexts of the two halves of a bidirectional search
+     * that met at a state. The step costs must be the same in both directions.
+     * @param forward The context of the search from the start state.
+     * @param backward The context of the search from the end state.
+     * @param meeting The id of the state they met at.
+     * @return The results.
+     */
+    Results<S, SearchAlgorithm<S>> generateResults(SearchContext forward, SearchContext backward, int meeting){
+        int hops = 0;
+        for (int state = meeting; forward.parent[state] != state; state = forward.parent[state]) hops++;
+        int backHops = 0;
+        for (int state = meeting; backward.parent[state] != state; state = backward.parent[state]) backHops++;
+        S[] path = this.hops(hops + backHops);
+        for (int state = meeting, i = hops; i >= 0; state = forward.parent[state]) path[i--] = stateSpace.state(state);
+        for (int state = meeting, i = hops + 1; i < path.length; i++) {
+            state = backward.parent[state];
+            path[i] = stateSpace.state(state);
+        }
+        return new Results<>(Arrays.asList(path), forward.g[meeting] + backward.g[meeting], this);
+    }
+
+    @SuppressWarnings("unchecked")
+    private S[] hops(int hops){
+        return (S[]) new State<?>[hops + 1];
+    }
+
+    /**
+     * Report that the algorithm could not find any path between the start and end states.
+     * @return Results with no hops.
+     */
+    Results<S, SearchAlgorithm<S>> noResults(){
+        return new Results<>(Collections.emptyList(), Float.POSITIVE_INFINITY, this);
+    }
+
+    /**
+     * A generic results report for a search algorithm. Parameterized by the state and algorithm types.
+     * @param <S> The state type.
+     * @param <A> The algorithm type.
+     */
+    class Results<S extends State<S>, A extends SearchAlgorithm<S>> {
+        private List<S> hops;
+        private float distance;
+        private A algorithm;
+        private SearchStatistics statistics;
+        private float bound;
+
+        /**
+         * Return a string report of the algorithm's results. Prints the states in the solution path, the length of the
+         * path, and how many hops in the path.
+         * @return
+         */
+        String resultsString(){
+            StringJoiner sj = new StringJoiner("")
+                .add("\n")
+                .add(algorithm.getName())
+                .add(" Search Results:\n");
+            if (hops.isEmpty()) {
+                return sj.add("No path found.\n").toString();
+            }
+            for(S hop: hops){
+                sj.add(hop.name()).add("\n");
+            }
+
+            sj.add("That took ").add(String.valueOf(hops.size() - 1)).add(" hops to find.\n");
+            sj.add("Total distance = ").add(String.valueOf(Math.round(distance))).add(" miles.\n");
+            if (bound > 1 && bound != Float.POSITIVE_INFINITY) {
+                sj.add("At most ").add(String.format(Locale.ROOT, "%.2f", bound));
+                sj.add(" times the shortest distance.\n");
+            }
+            return sj.toString();
+        }
+
+        /**
+         * Determine if a path was found.
+         * @return True if there is a path, even an empty one from a state to itself.
+         */
+        boolean found(){
+            return distance != Float.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Get the name of the algorithm that did the search.
+         * @return The name.
+         */
+        String getAlgorithmName(){
+            return algorithm.getName();
+        }
+
+        /**
+         * Get the statistics of the search.
+         * @return The statistics.
+         */
+        SearchStatistics statistics(){
+            return statistics;
+        }
+
+        /**
+         * Get the length of the path.
+         * @return The length, or infinity if no path was found.
+         */
+        float distance(){
+            return distance;
+        }
+
+        /**
+         * Get how much longer than the shortest path the path may be.
+         * @return A factor of at least 1, exactly 1 if the path is a shortest path, or infinity if nothing is known.
+         */
+        float bound(){
+            return bound;
+        }
+
+        /**
+         * Get the number of hops on the path.
+         * @return The number of hops, or -1 if no path was found.
+         */
+        int hops(){
+            return hops.size() - 1;
+        }
+
+        /**
+         * Get the same report for the path travelled the other way around.
+         * @return The reversed report, without statistics.
+         */
+        Results<S, A> reversed(){
+            List<S> reversed = new ArrayList<>(hops);
+            Collections.reverse(reversed);
+            Results<S, A> results = new Results<>(reversed, distance, algorithm);
+            results.bound = bound;
+            return results;
+        }
+
+        /**
+         * Get the same report, without statistics.
+         * @return The copy.
+         */
+        Results<S, A> copy(){
+            Results<S, A> results = new Results<>(hops, distance, algorithm);
+            results.bound = bound;
+            return results;
+        }
+
+        /**
+         * Create an instance of the report.
+         * @param hops The list of hop (each hop is a state) in the solution path.
+         * @param distance The length of the solution path.
+         * @param algorithm The algorithm used to search.
+         */
+        Results(List<S> hops, float distance, A algorithm){
+            this.hops = hops;
+            this.distance = distance;
+            this.algorithm = algorithm;
+            this.bound = algorithm.findsShortestPaths() ? 1 : Float.POSITIVE_INFINITY;
+        }
+    }
+
+
+}
+
+
+/*
+ * Implementations of search algorithms live down here.
+ */
+
+/**
+ * Implementation of the A* search algorithm.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
+ */
+class AStar<S extends State<S>> extends SearchAlgorithm<S> {
+
+    private final Heuristic heuristic;
+    private final SearchContexts contexts;
+
+    /**
+     * Create an A* search guided by the direct distance between states.
+     * @param stateSpace The statespace to search.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    AStar(StateSpace<S> stateSpace, SearchContexts contexts) {
+        this(stateSpace, stateSpace::distance, contexts);
+    }
+
+    /**
+     * Create an A* search guided by some other heuristic.
+     * @param stateSpace The statespace to search.
+     * @param heuristic An optimistic guess of the distance between two states.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    AStar(StateSpace<S> stateSpace, Heuristic heuristic, SearchContexts contexts) {
+        super(stateSpace);
+        this.heuristic = heuristic;
+        this.contexts = contexts;
+    }
+
+    @Override
+    String getName() {
+        return "A*";
+    }
+
+    @Override
+    boolean findsShortestPaths() {
+        return true;
+    }
+
+    /**
+     * Main execution of the algorithm.
+     *
+     * @param start The start state.
+     * @param end   The end state.
+     * @param statistics Where to count the work done.
+     * @return An instance of a report that contains the list of hops from the start state to the end state,
+     * as well as any other relevant information.
+     */
+    @Override
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        int goal = end.id();
+        SearchContext c = this.contexts.get(0);
+        HeuristicMemo h = c.memo();
+        h.reset(this.heuristic, goal);
+        c.reset();
+
+        // The frontier holds each state at most once, keyed by the f-value of the shortest path to it found so far.
+        IndexedHeap frontier = c.heap();
+        c.reach(start.id(), start.id(), 0);
+        frontier.offer(start.id(), h.get(start.id()), h.get(start.id()));
+        statistics.generated++;
+
+        while (!frontier.isEmpty()) {
+            statistics.frontier(frontier.size());
+            int state = frontier.poll();
+
+            if (state == goal) return this.generateResults(c, state);
+            if (c.reopened(state)) statistics.reexpanded++;
+            statistics.expanded++;
+            c.close(state);
+
+            Adjacency routes = stateSpace.adjacency(state);
+            for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                int neighbor = routes.target(i);
+                float g = c.g[state] + routes.weight(i);
+                if (c.reached(neighbor) && g >= c.g[neighbor]) continue;
+
+                // Either a new state or a shorter path to a known one. A closed state only gets reopened if the
+                // heuristic turns out not to be consistent, which rounding in the step costs can cause.
+                if (c.closed(neighbor)) c.reopen(neighbor);
+                c.reach(neighbor, state, g);
+                frontier.offer(neighbor, g + h.get(neighbor), h.get(neighbor));
+                statistics.generated++;
+            }
+        }
+
+        return this.noResults();
+    }
+}
+
+
+/**
+ * Implementation of a contraction hierarchy query: a bidirectional Dijkstra search that only follows upward links,
+ * from the start state and from the end state, until neither side can improve on the best meeting point.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
+ */
+class ContractionHierarchySearch<S extends State<S>> extends SearchAlgorithm<S> {
+
+    private final ContractionHierarchy hierarchy;
+    private final SearchContexts contexts;
+
+    /**
+     * Create a query engine.
+     * @param stateSpace The statespace the hierarchy was built from.
+     * @param hierarchy The hierarchy.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    ContractionHierarchySearch(StateSpace<S> stateSpace, ContractionHierarchy hierarchy, SearchContexts contexts) {
+        super(stateSpace);
+        this.hierarchy = hierarchy;
+        this.contexts = contexts;
+    }
+
+    @Override
+    String getName() {
+        return "Contraction Hierarchy";
+    }
+
+    @Override
+    boolean findsShortestPaths() {
+        return true;
+    }
+
+    /**
+     * Main execution of the algorithm.
+     *
+     * @param start The start state.
+     * @param end   The end state.
+     * @param statistics Where to count the work done.
+     * @return An instance of a report that contains the list of hops from the start state to the end state,
+     * as well as any other relevant information.
+     */
+    @Override
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        SearchContext forward = this.contexts.get(0);
+        SearchContext backward = this.contexts.get(1);
+        reset(forward, start.id());
+        reset(backward, end.id());
+
+        float best = start.id() == end.id() ? 0 : Float.POSITIVE_INFINITY;
+        int meeting = start.id();
+        statistics.generated += 2;
+
+        for (;;) {
+            statistics.frontier(forward.heap().size() + backward.heap().size());
+            float forwardMin = topKey(forward);
+            float backwardMin = topKey(backward);
+            if (Math.min(forwardMin, backwardMin) >= best) break;
+
+            SearchContext side = forwardMin <= backwardMin ? forward : backward;
+            SearchContext other = side == forward ? backward : forward;
+            int x = side.heap().poll();
+            statistics.expanded++;
+            for (int e = this.hierarchy.offsets[x]; e < this.hierarchy.offsets[x + 1]; e++) {
+                int y = this.hierarchy.targets[e];
+                float g = side.g[x] + this.hierarchy.weights[e];
+                if (g >= distanceTo(side, y)) continue;
+                reach(side, y, g, x);
+                statistics.generated++;
+                if (g + distanceTo(other, y) < best) {
+                    best = g + distanceTo(other, y);
+                    meeting = y;
+                }
+            }
+        }
+
+        if (best == Float.POSITIVE_INFINITY) return this.noResults();
+
+        // Climb from the meeting point down to the start, then unpack the links on the way back up, and carry on
+        // down to the end.
+        IntList climb = new IntList();
+        for (int x = meeting; x != start.id(); x = forward.parent[x]) climb.add(x);
+
+        IntList path = new IntList();
+        path.add(start.id());
+        float length = 0;
+        int at = start.id();
+        for (int i = climb.size() - 1; i >= 0; i--) {
+            length = this.hierarchy.unpack(at, climb.get(i), path, length);
+            at = climb.get(i);
+        }
+        for (int x = meeting; x != end.id(); x = backward.parent[x]) {
+            length = this.hierarchy.unpack(x, backward.parent[x], path, length);
+        }
+
+        return this.generateResults(path.toArray(), length);
+    }
+
+    /**
+     * Start one side of the query, a search context with its heap as the frontier, from a state. The context's stamps
+     * let its arrays be reused from one query to the next without clearing them.
+     */
+    private static void reset(SearchContext side, int source){
+        side.reset();
+        reach(side, source, 0, source);
+    }
+
+    private static float distanceTo(SearchContext side, int state){
+        return side.reached(state) ? side.g[state] : Float.POSITIVE_INFINITY;
+    }
+
+    private static float topKey(SearchContext side){
+        IndexedHeap frontier = side.heap();
+        return frontier.isEmpty() ? Float.POSITIVE_INFINITY : frontier.key(frontier.peek());
+    }
+
+    private static void reach(SearchContext side, int state, float g, int parent){
+        side.reach(state, parent, g);
+        side.heap().offer(state, g, 0);
+    }
+}
+
+
+/**
+ * Implementation of a bidirectional Breadth-First search. Searches outwards from the start and the end state at once,
+ * a whole layer at a time, always growing the smaller frontier. When a layer reaches states the other side has seen,
+ * the layer is finished and the meeting point with the fewest hops in total wins. Each side is one of the thread's
+ * search contexts, with its frontier queued in the context's frontier array and the hops to each state counted in its
+ * hop array.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
+ */
+class BidirectionalBreadthFirst<S extends State<S>> extends SearchAlgorithm<S> {
+
+    private final SearchContexts contexts;
+
+    /**
+     * Create a bidirectional breadth-first search.
+     * @param stateSpace The statespace to search. Its routes must go both ways.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    BidirectionalBreadthFirst(StateSpace<S> stateSpace, SearchContexts contexts) {
+        super(stateSpace);
+        this.contexts = contexts;
+    }
+
+    @Override
+    String getName() {
+        return "Bidirectional Breadth-First";
+    }
+
+    /**
+     * Main execution of the algorithm.
+     *
+     * @param start The start state.
+     * @param end   The end state.
+     * @param statistics Where to count the work done.
+     * @return An instance of a report that contains the list of hops from the start state to the end state,
+     * as well as any other relevant information.
+     */
+    @Override
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        if (start.id() == end.id()) return this.generateResults(new int[]{start.id()}, 0);
+
+        // Each state is queued at most once per side, so neither queue wraps around.
+        SearchContext forward = this.contexts.get(0);
+        SearchContext backward = this.contexts.get(1);
+        forward.reset();
+        backward.reset();
+        forward.reach(start.id(), start.id(), 0);
+        forward.hops()[start.id()] = 0;
+        forward.frontier[0] = start.id();
+        backward.reach(end.id(), end.id(), 0);
+        backward.hops()[end.id()] = 0;
+        backward.frontier[0] = end.id();
+        int forwardHead = 0;
+        int forwardTail = 1;
+        int backwardHead = 0;
+        int backwardTail = 1;
+        statistics.generated += 2;
+
+        while (forwardHead < forwardTail && backwardHead < backwardTail) {
+            statistics.frontier(forwardTail - forwardHead + backwardTail - backwardHead);
+            boolean forwards = forwardTail - forwardHead <= backwardTail - backwardHead;
+            SearchContext side = forwards ? forward : backward;
+            SearchContext other = forwards ? backward : forward;
+            int[] hops = side.hops();
+            int[] otherHops = other.hops();
+            int head = forwards ? forwardHead : backwardHead;
+            int tail = forwards ? forwardTail : backwardTail;
+
+            int meeting = -1;
+            int fewest = Integer.MAX_VALUE;
+            for (int layer = tail; head < layer; head++) {
+                int state = side.frontier[head];
+                statistics.expanded++;
+                Adjacency routes = stateSpace.adjacency(state);
+                for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                    int neighbor = routes.target(i);
+                    if (side.reached(neighbor)) continue;
+
+                    side.reach(neighbor, state, side.g[state] + routes.weight(i));
+                    hops[neighbor] = hops[state] + 1;
+                    side.frontier[tail++] = neighbor;
+                    statistics.generated++;
+
+                    if (other.reached(neighbor) && hops[neighbor] + otherHops[neighbor] < fewest) {
+                        fewest = hops[neighbor] + otherHops[neighbor];
+                        meeting = neighbor;
+                    }
+                }
+            }
+            if (forwards) {
+                forwardHead = head;
+                forwardTail = tail;
+            } else {
+                backwardHead = head;
+                backwardTail = tail;
+            }
+
+            if (meeting >= 0) return this.generateResults(forward, backward, meeting);
+        }
+
+        return this.noResults();
+    }
+}
+
+
+/**
+ * Implementation of a bidirectional A* search. Each side runs its own A* search, guided towards the other end, and the
+ * side with the smaller f-value at the top of its frontier goes next. Every time a side reaches a state the other side
+ * has reached, the path through it is a candidate. Because both heuristics are consistent, once either frontier has
+ * nothing left with an f-value below the best candidate, no shorter path can turn up and the search stops. Each side
+ * is one of the thread's search contexts, with its heap as the frontier and its own guesses towards the other end.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
+ */
+class BidirectionalAStar<S extends State<S>> extends SearchAlgorithm<S> {
+
+    private final Heuristic heuristic;
+    private final SearchContexts contexts;
+
+    /**
+     * Create a bidirectional A* search guided by the direct distance between states.
+     * @param stateSpace The statespace to search. Its step costs must be the same in both directions.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    BidirectionalAStar(StateSpace<S> stateSpace, SearchContexts contexts) {
+        this(stateSpace, stateSpace::distance, contexts);
+    }
+
+    /**
+     * Create a bidirectional A* search guided by some other heuristic.
+     * @param stateSpace The statespace to search. Its step costs must be the same in both directions.
+     * @param heuristic An optimistic guess of the distance between two states, the same in both directions.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    BidirectionalAStar(StateSpace<S> stateSpace, Heuristic heuristic, SearchContexts contexts) {
+        super(stateSpace);
+        this.heuristic = heuristic;
+        this.contexts = contexts;
+    }
+
+    @Override
+    String getName() {
+        return "Bidirectional A*";
+    }
+
+    @Override
+    boolean findsShortestPaths() {
+        return true;
+    }
+
+    /**
+     * Main execution of the algorithm.
+     *
+     * @param start The start state.
+     * @param end   The end state.
+     * @param statistics Where to count the work done.
+     * @return An instance of a report that contains the list of hops from the start state to the end state,
+     * as well as any other relevant information.
+     */
+    @Override
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        SearchContext forward = this.contexts.get(0);
+        SearchContext backward = this.contexts.get(1);
+        this.reset(forward, start.id(), end.id(), statistics);
+        this.reset(backward, end.id(), start.id(), statistics);
+
+        float best = start.id() == end.id() ? 0 : Float.POSITIVE_INFINITY;
+        int meeting = start.id();
+
+        for (;;) {
+            statistics.frontier(forward.heap().size() + backward.heap().size());
+            float forwardMin = topKey(forward);
+            float backwardMin = topKey(backward);
+            if (Math.max(forwardMin, backwardMin) >= best) break;
+
+            SearchContext side = forwardMin <= backwardMin ? forward : backward;
+            SearchContext other = side == forward ? backward : forward;
+            int state = side.heap().poll();
+            // Nothing is ever reopened, so a closed state is one this side has expanded before.
+            if (side.closed(state)) statistics.reexpanded++;
+            side.close(state);
+            statistics.expanded++;
+
+            Adjacency routes = stateSpace.adjacency(state);
+            for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                int neighbor = routes.target(i);
+                if (!improve(side, state, neighbor, routes.weight(i), statistics)) continue;
+
+                if (other.reached(neighbor) && side.g[neighbor] + other.g[neighbor] < best) {
+                    best = side.g[neighbor] + other.g[neighbor];
+                    meeting = neighbor;
+                }
+            }
+        }
+
+        if (best == Float.POSITIVE_INFINITY) return this.noResults();
+        return this.generateResults(forward, backward, meeting);
+    }
+
+    /**
+     * Forget the last search on one side and start a new one.
+     * @param side The side's search context.
+     * @param source The id of the state this side searches from.
+     * @param goal The id of the state it searches towards.
+     */
+    private void reset(SearchContext side, int source, int goal, SearchStatistics statistics){
+        side.reset();
+        HeuristicMemo h = side.memo();
+        h.reset(this.heuristic, goal);
+        side.reach(source, source, 0);
+        side.heap().offer(source, h.get(source), h.get(source));
+        statistics.generated++;
+    }
+
+    private static float topKey(SearchContext side){
+        IndexedHeap frontier = side.heap();
+        return frontier.isEmpty() ? Float.POSITIVE_INFINITY : frontier.key(frontier.peek());
+    }
+
+    /**
+     * Record a step to a neighbor on one side if it is the shortest way there found so far.
+     * @return True if it was.
+     */
+    private static boolean improve(SearchContext side, int state, int neighbor, float stepCost,
+                                   SearchStatistics statistics){
+        float g = side.g[state] + stepCost;
+        if (side.reached(neighbor) && g >= side.g[neighbor]) return false;
+        side.reach(neighbor, state, g);
+        HeuristicMemo h = side.memo();
+        side.heap().offer(neighbor, g + h.get(neighbor), h.get(neighbor));
+        statistics.generated++;
+        return true;
+    }
+}
+
+
+/**
+ * Implementation of Lifelong Planning A* (Koenig, Likhachev and Furcy), for graphs whose routes change. The search for
+ * each recent start and end pair is kept, and when a route changes only the part of it the change affects is searched
+ * again, instead of all of it. Every state has a g-value, its distance from the start as last worked out, and an
+ * rhs-value, the best distance any of its neighbors' g-values offers it. A state whose two values differ is
+ * inconsistent and sits on the frontier, keyed by {@code [min(g, rhs) + h; min(g, rhs)]}; the search settles
+ * inconsistent states in key order until the end state is consistent and nothing on the frontier could still improve
+ * it. A route change only makes its two ends inconsistent, so the next search starts from there.
+ * <p>
+ * Each remembered pair keeps arrays as big as the statespace, so only the most recently asked pairs are kept. The step
+ * costs must be the same in both directions.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
+ */
+class LifelongPlanningAStar<S extends State<S>> extends SearchAlgorithm<S> {
+
+    private final Heuristic heuristic;
+    private final LinkedHashMap<Long, Plan> plans;
+
+    /**
+     * Create a search guided by the direct distance between states.
+     * @param stateSpace The statespace to search. Tell the search about every change to it through
+     *                   {@link #routeChanged}.
+     * @param pairs How many start and end pairs to keep the search for.
+     */
+    LifelongPlanningAStar(StateSpace<S> stateSpace, int pairs) {
+        super(stateSpace);
+        this.heuristic = stateSpace::distance;
+        this.plans = new LinkedHashMap<Long, Plan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Plan> eldest) {
+                return this.size() > pairs;
+            }
+        };
+    }
+
+    @Override
+    String getName() {
+        return "Lifelong Planning A*";
+    }
+
+    @Override
+    boolean findsShortestPaths() {
+        return true;
+    }
+
+    /**
+     * Note that a route has been added, removed or reweighted, in every search kept.
+     * @param from The id of the state at one end.
+     * @param to The id of the state at the other end.
+     */
+    void routeChanged(int from, int to){
+        List<Plan> plans;
+        synchronized (this.plans) {
+            plans = new ArrayList<>(this.plans.values());
+        }
+        for (Plan plan : plans) {
+            synchronized (plan) {
+                plan.update(from);
+                plan.update(to);
+            }
+        }
+    }
+
+    /**
+     * Main execution of the algorithm.
+     *
+     * @param start The start state.
+     * @param end   The end state.
+     * @param statistics Where to count the work done.
+     * @return An instance of a report that contains the list of hops from the start state to the end state,
+     * as well as any other relevant information.
+     */
+    @Override
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        Long pair = (long) start.id() << 32 | end.id();
+        Plan plan;
+        synchronized (this.plans) {
+            plan = this.plans.computeIfAbsent(pair, p -> new Plan(start.id(), end.id()));
+        }
+        synchronized (plan) {
+            return plan.search(statistics);
+        }
+    }
+
+    /**
+     * The search for one start and end pair.
+     */
+    private class Plan {
+        final int start;
+        final int goal;
+        final float[] g;
+        final float[] rhs;
+        final int[] parent;
+        final IndexedHeap frontier;
+
+        Plan(int start, int goal){
+            this.start = start;
+            this.goal = goal;
+            this.g = new float[stateSpace.size()];
+            this.rhs = new float[stateSpace.size()];
+            this.parent = new int[stateSpace.size()];
+            Arrays.fill(this.g, Float.POSITIVE_INFINITY);
+            Arrays.fill(this.rhs, Float.POSITIVE_INFINITY);
+            Arrays.fill(this.parent, -1);
+            this.parent[start] = start;
+            this.frontier = new IndexedHeap(stateSpace.size());
+            this.rhs[start] = 0;
+            this.frontier.offer(start, heuristic.estimate(start, goal), 0);
+        }
+
+        /**
+         * Work out the rhs-value of a state again, and the neighbor it comes through, and put it on the frontier or
+         * take it off depending on whether it is now consistent.
+         */
+        void update(int state){
+            if (state != this.start) {
+                int parent = this.parent[state];
+                float best = Float.POSITIVE_INFINITY;
+                float kept = Float.POSITIVE_INFINITY;
+                int previous = -1;
+                Adjacency routes = stateSpace.adjacency(state);
+                for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                    int neighbor = routes.target(i);
+                    float through = this.g[neighbor] + routes.weight(i);
+                    if (neighbor == parent) kept = Math.min(kept, through);
+                    if (through < best) {
+                        best = through;
+                        previous = neighbor;
+                    }
+                }
+                this.rhs[state] = best;
+                // On a tie, keep the neighbor it already comes through, so that cities joined by routes of 0 miles
+                // don't each end up coming through the other.
+                this.parent[state] = best == Float.POSITIVE_INFINITY ? -1 : kept == best ? parent : previous;
+            }
+            if (this.g[state] == this.rhs[state]) {
+                this.frontier.remove(state);
+            } else {
+                float k = Math.min(this.g[state], this.rhs[state]);
+                this.frontier.offer(state, k + heuristic.estimate(state, this.goal), k);
+            }
+        }
+
+        /**
+         * @return True if the top of the frontier comes before the key of the end state, so it could still improve it.
+         */
+        boolean topBeforeGoal(){
+            if (this.frontier.isEmpty()) return false;
+            int top = this.frontier.peek();
+            float k = Math.min(this.g[this.goal], this.rhs[this.goal]);
+            float key = k + heuristic.estimate(this.goal, this.goal);
+            int c = Float.compare(this.frontier.key(top), key);
+            return c < 0 || c == 0 && Math.min(this.g[top], this.rhs[top]) < k;
+        }
+
+        Results<S, SearchAlgorithm<S>> search(SearchStatistics statistics){
+            while (this.topBeforeGoal() || this.rhs[this.goal] != this.g[this.goal]) {
+                statistics.frontier(this.frontier.size());
+                int state = this.frontier.poll();
+                statistics.expanded++;
+                if (this.g[state] > this.rhs[state]) {
+                    this.g[state] = this.rhs[state];
+                } else {
+                    // Underconsistent: its distance got longer. Forget it, and let its neighbors and itself find the
+                    // next best way in.
+                    statistics.reexpanded++;
+                    this.g[state] = Float.POSITIVE_INFINITY;
+                    this.update(state);
+                }
+                Adjacency routes = stateSpace.adjacency(state);
+                for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                    this.update(routes.target(i));
+                    statistics.generated++;
+                }
+            }
+            if (this.g[this.goal] == Float.POSITIVE_INFINITY) return noResults();
+
+            // Walk back from the end, each time to the neighbor its rhs-value came through
+            IntList path = new IntList();
+            for (int state = this.goal; state != this.start; state = this.parent[state]) {
+                if (state < 0 || path.size() == stateSpace.size()) {
+                    throw new IllegalStateException("No way back to the start");
+                }
+                path.add(state);
+            }
+            path.add(this.start);
+
+            int[] hops = path.toArray();
+            for (int i = 0, j = hops.length - 1; i < j; i++, j--) {
+                int hop = hops[i];
+                hops[i] = hops[j];
+                hops[j] = hop;
+            }
+            return generateResults(hops, this.g[this.goal]);
+        }
+    }
+}
+
+
+/**
+ * Implementation of Hash Distributed A* (Kishimoto, Fukunaga and Botea), which spreads one search over several
+ * threads. Every state is owned by one worker, picked by hashing its id, and only its owner keeps its g-value, puts it
+ * on a frontier and expands it. A worker that generates a state it doesn't own posts it to the owner's mailbox, a
+ * lock-free queue, and carries on. Whenever the end state is reached with a shorter path, the path becomes the one to
+ * beat, and anything whose f-value can't beat it is dropped. The search is over once every worker is idle and no
+ * message is in flight, which a single counter of busy workers plus unread messages tells: a message is counted before
+ * it is posted, and only uncounted once its owner has counted itself busy again. An idle worker spins briefly on its
+ * mailbox and then parks until a message is posted to it or the search is over. If any worker fails, the search is
+ * aborted so that the others stop instead of waiting for it forever.
+ * <p>
+ * The calling thread is one of the workers, and the others come from a pool shared by every parallel search, which
+ * starts threads as they are needed and lets them go after a minute idle, so that a search never waits for threads
+ * another search is holding. Searches on the same instance each get their own workers, so they run side by side.
+ * <p>
+ * A worker keeps the g-values of the states it owns, where they were reached from, and whether they have been expanded,
+ * in a hash table of only the states it has reached, so a search that reaches a few states costs no more than that
+ * however big the statespace is. The tables are stamped with the search they belong to, and a finished search's
+ * workers are kept for the next one, tables and all, so nothing has to be allocated or cleared again.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
+ */
+class ParallelAStar<S extends State<S>> extends SearchAlgorithm<S> {
+
+    /**
+     * How many times an idle worker looks at its mailbox before it parks.
+     */
+    private static final int IDLE_SPINS = 64;
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "parallel-astar");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Heuristic heuristic;
+    private final int workers;
+
+    /**
+     * The workers of finished searches, waiting for the next ones.
+     */
+    private final ConcurrentLinkedQueue<Query> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create a parallel A* search.
+     * @param stateSpace The statespace to search.
+     * @param heuristic An optimistic guess of the distance between two states.
+     * @param workers The number of threads to search with, counting the calling thread.
+     */
+    ParallelAStar(StateSpace<S> stateSpace, Heuristic heuristic, int workers) {
+        super(stateSpace);
+        this.heuristic = heuristic;
+        this.workers = workers;
+    }
+
+    @Override
+    String getName() {
+        return "Parallel A*";
+    }
+
+    @Override
+    boolean findsShortestPaths() {
+        return true;
+    }
+
+    /**
+     * Main execution of the algorithm.
+     *
+     * @param start The start state.
+     * @param end   The end state.
+     * @param statistics Where to count the work done. The peak frontier is the sum of each worker's own peak.
+     * @return An instance of a report that contains the list of hops from the start state to the end state,
+     * as well as any other relevant information.
+     */
+    @Override
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        Query query = this.idle.poll();
+        if (query == null) query = new Query();
+        query.reset(end.id());
+        query.post(start.id(), 0, start.id());
+
+        List<Future<?>> helpers = new ArrayList<>();
+        for (int w = 1; w < this.workers; w++) helpers.add(POOL.submit(query.workers.get(w)));
+        query.workers.get(0).run();
+        for (Future<?> helper : helpers) {
+            try {
+                helper.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while searching", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("A worker failed", e.getCause());
+            }
+        }
+
+        for (Query.Worker worker : query.workers) statistics.add(worker.statistics);
+        float length = query.incumbent;
+        if (length == Float.POSITIVE_INFINITY) {
+            this.idle.add(query);
+            return this.noResults();
+        }
+
+        IntList path = new IntList();
+        for (int state = end.id(); state != start.id(); state = query.owner(state).reached.parent(state)) {
+            if (path.size() == stateSpace.size()) throw new IllegalStateException("No way back to the start");
+            path.add(state);
+        }
+        path.add(start.id());
+        this.idle.add(query);
+        int[] hops = path.toArray();
+        for (int i = 0, j = hops.length - 1; i < j; i++, j--) {
+            int hop = hops[i];
+            hops[i] = hops[j];
+            hops[j] = hop;
+        }
+        return this.generateResults(hops, length);
+    }
+
+    /**
+     * Everything one search shares between its workers. What each worker has reached is only ever touched by that
+     * worker, until the workers have all finished. Reset between searches.
+     */
+    private class Query {
+        int goal;
+        final List<Worker> workers;
+        final AtomicInteger busy = new AtomicInteger();
+
+        /**
+         * The length of the shortest path to the end found so far. Only written by the end state's owner.
+         */
+        volatile float incumbent = Float.POSITIVE_INFINITY;
+
+        /**
+         * Whether a worker has failed, which stops the others.
+         */
+        volatile boolean aborted;
+
+        Query(){
+            this.workers = new ArrayList<>(ParallelAStar.this.workers);
+            for (int w = 0; w < ParallelAStar.this.workers; w++) this.workers.add(new Worker());
+        }
+
+        /**
+         * Start a new search for an end state, forgetting everything about the last one.
+         */
+        void reset(int goal){
+            this.goal = goal;
+            this.incumbent = Float.POSITIVE_INFINITY;
+            this.aborted = false;
+            this.busy.set(this.workers.size());
+            for (Worker worker : this.workers) worker.reset();
+        }
+
+        Worker owner(int state){
+            int hash = state * 0x9E3779B9;
+            return this.workers.get((int) (((hash ^ (hash >>> 16)) & 0xFFFFFFFFL) % this.workers.size()));
+        }
+
+        /**
+         * Send a state, reached with some g-value from some parent, to its owner.
+         */
+        void post(int state, float g, int parent){
+            this.busy.incrementAndGet();
+            Worker owner = this.owner(state);
+            owner.mailbox.add(new Message(state, g, parent));
+            if (owner.parked) LockSupport.unpark(owner.thread);
+        }
+
+        /**
+         * Uncount a busy worker or a message, and wake every worker if that was the last of them.
+         */
+        void settle(){
+            if (this.busy.decrementAndGet() == 0) this.wakeAll();
+        }
+
+        void wakeAll(){
+            for (Worker worker : this.workers) {
+                if (worker.thread != null) LockSupport.unpark(worker.thread);
+            }
+        }
+
+        private class Worker implements Runnable {
+            final ConcurrentLinkedQueue<Message> mailbox = new ConcurrentLinkedQueue<>();
+            final LongHeap frontier = new LongHeap();
+            final Reached reached = new Reached();
+            SearchStatistics statistics;
+            volatile Thread thread;
+            volatile boolean parked;
+
+            void reset(){
+                this.mailbox.clear();
+                while (!this.frontier.isEmpty()) this.frontier.poll();
+                this.reached.reset();
+                this.statistics = new SearchStatistics();
+            }
+
+            @Override
+            public void run() {
+                this.thread = Thread.currentThread();
+                try {
+                    this.work();
+                } catch (RuntimeException | Error e) {
+                    aborted = true;
+                    wakeAll();
+                    throw e;
+                } finally {
+                    this.parked = false;
+                    this.thread = null;
+                }
+            }
+
+            private void work() {
+                while (!aborted) {
+                    for (Message message = this.mailbox.poll(); message != null; message = this.mailbox.poll()) {
+                        this.reach(message.state, message.g, message.parent);
+                        settle();
+                    }
+                    if (this.expandNext()) continue;
+
+                    // Nothing left worth expanding: idle until a message comes in, or everyone is idle.
+                    settle();
+                    for (int spins = 0;; spins++) {
+                        if (spins >= IDLE_SPINS) this.parked = true;
+                        Message message = this.mailbox.poll();
+                        if (message != null) {
+                            this.parked = false;
+                            busy.incrementAndGet();
+                            this.reach(message.state, message.g, message.parent);
+                            settle();
+                            break;
+                        }
+                        if (busy.get() == 0 || aborted) return;
+                        if (spins < IDLE_SPINS) Thread.yield();
+                        else LockSupport.park(this);
+                    }
+                }
+            }
+
+            /**
+             * Keep a state reached with a g-value, if it is the shortest way there so far and could still beat the
+             * path to the end.
+             */
+            void reach(int state, float g, int parent){
+                int slot = this.reached.find(state);
+                if (slot >= 0 && g >= this.reached.g(slot)) return;
+                float f = g + heuristic.estimate(state, goal);
+                if (f >= incumbent) return;
+                if (slot < 0) slot = this.reached.claim(state);
+                this.reached.set(slot, g, parent);
+                this.statistics.generated++;
+                if (state == goal) {
+                    incumbent = g;
+                    return;
+                }
+                // Non-negative floats sort the same way as their bits
+                this.frontier.add((long) Float.floatToIntBits(f) << 32 | state);
+                this.statistics.frontier(this.frontier.size());
+            }
+
+            /**
+             * Expand the next state on the frontier that is still worth it.
+             * @return False if there wasn't one.
+             */
+            boolean expandNext(){
+                while (!this.frontier.isEmpty()) {
+                    long top = this.frontier.poll();
+                    int state = (int) top;
+                    float f = Float.intBitsToFloat((int) (top >>> 32));
+                    if (f >= incumbent) {
+                        // Nothing left can beat the path to the end.
+                        while (!this.frontier.isEmpty()) this.frontier.poll();
+                        return false;
+                    }
+                    int slot = this.reached.find(state);
+                    float g = this.reached.g(slot);
+                    if (f != g + heuristic.estimate(state, goal)) continue;  // Superseded by a shorter way there
+
+                    if (this.reached.expanded(slot)) this.statistics.reexpanded++;
+                    this.reached.expand(slot);
+                    this.statistics.expanded++;
+                    Adjacency routes = stateSpace.adjacency(state);
+                    for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                        int neighbor = routes.target(i);
+                        float step = g + routes.weight(i);
+                        if (step >= incumbent) continue;
+                        if (owner(neighbor) == this) this.reach(neighbor, step, state);
+                        else post(neighbor, step, state);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    private static class Message {
+        final int state;
+        final float g;
+        final int parent;
+
+        Message(int state, float g, int parent){
+            this.state = state;
+            this.g = g;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * The states a worker has reached in a search, in an open addressing table that doubles whenever it is half full.
+     * Slots are stamped with the search they were claimed in, and slots from an earlier search count as free, so
+     * starting a search doesn't have to clear anything. A slot stays put until the table grows.
+     */
+    private static class Reached {
+        private int[] keys = new int[16];
+        private int[] stamps = new int[16];
+        private float[] g = new float[16];
+        private int[] parents = new int[16];
+        private boolean[] expanded = new boolean[16];
+        private int shift = Integer.numberOfLeadingZeros(16) + 1;
+        private int size;
+        private int generation = 1;
+
+        void reset(){
+            this.size = 0;
+            if (++this.generation == 0) {
+                Arrays.fill(this.stamps, 0);
+                this.generation = 1;
+            }
+        }
+
+        /**
+         * @return The slot of a state, or -1 if it hasn't been reached in this search.
+         */
+        int find(int state){
+            int mask = this.keys.length - 1;
+            for (int slot = state * 0x9E3779B9 >>> this.shift;; slot = (slot + 1) & mask) {
+                if (this.stamps[slot] != this.generation) return -1;
+                if (this.keys[slot] == state) return slot;
+            }
+        }
+
+        /**
+         * Give a state that hasn't been reached in this search a slot, not expanded yet.
+         * @return The slot.
+         */
+        int claim(int state){
+            if (2 * (this.size + 1) > this.keys.length) this.grow();
+            int mask = this.keys.length - 1;
+            int slot = state * 0x9E3779B9 >>> this.shift;
+            while (this.stamps[slot] == this.generation) slot = (slot + 1) & mask;
+            this.keys[slot] = state;
+            this.stamps[slot] = this.generation;
+            this.expanded[slot] = false;
+            this.size++;
+            return slot;
+        }
+
+        private void grow(){
+            int[] keys = this.keys;
+            int[] stamps = this.stamps;
+            float[] g = this.g;
+            int[] parents = this.parents;
+            boolean[] expanded = this.expanded;
+            int capacity = 2 * keys.length;
+            this.keys = new int[capacity];
+            this.stamps = new int[capacity];
+            this.g = new float[capacity];
+            this.parents = new int[capacity];
+            this.expanded = new boolean[capacity];
+            this.shift--;
+            this.size = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (stamps[i] != this.generation) continue;
+                int slot = this.claim(keys[i]);
+                this.g[slot] = g[i];
+                this.parents[slot] = parents[i];
+                this.expanded[slot] = expanded[i];
+            }
+        }
+
+        float g(int slot){
+            return this.g[slot];
+        }
 
-    /**
-     * Calculate the direct distance between this state and some other arbitrary state.
-     * @param o
-     * @return
-     */
-    float distanceTo(S o);
+        void set(int slot, float g, int parent){
+            this.g[slot] = g;
+            this.parents[slot] = parent;
+        }
 
-    /**
-     * Return a NavigableSet of neighbors of this state. This makes the strong assumption that there
-     * is only one direct connection between any two states that are directly connected (i.e no two
-     * states can have multiple direct paths between them).
-     * @return NavigableSet of neighbors.
-     */
-    NavigableSet<S> neighbors();
+        boolean expanded(int slot){
+            return this.expanded[slot];
+        }
 
-    /**
-     * Determine if an instance of this state is equal to some arbitrary object.
-     * @param obj The object to determine the equality between.
-     * @return Whether this state is equal to the other object.
-     */
-    boolean equals(Object obj);
+        void expand(int slot){
+            this.expanded[slot] = true;
+        }
 
-    /**
-     * Calculate the hashcode of this state. Used for when this state is stored in any
-     * type of hashing collection.
-     * @return The hashcode as an integer.
-     */
-    int hashCode();
+        /**
+         * @return The state a reached state was reached from.
+         */
+        int parent(int state){
+            return this.parents[this.find(state)];
+        }
+    }
 }
 
+
 /**
- * An implementation of a state in a statespace, representing a City located by coordinates.
+ * Implementation of Iterative Deepening A* (Korf). Each iteration is a depth-first search that gives up on any path
+ * whose f-value goes over a threshold, and each iteration raises the threshold. Only the path being followed is kept
+ * as search nodes, so the memory a search takes does not grow with its frontier the way it does in {@link AStar}, and a
+ * path with more hops than the node limit is given up on like one that goes over the threshold.
+ * <p>
+ * With step costs as varied as real distances, raising the threshold only to the smallest f-value that went over it
+ * would take an iteration for nearly every state, so it is raised by at least a fixed factor. Once an iteration reaches
+ * the end state, the rest of it only looks for paths shorter than the shortest one found, so what it returns is still a
+ * shortest path among those within the node limit. Within an iteration, a state already searched from is not searched
+ * from again by a path that is no shorter and has no fewer hops, since the first time had at least as much of the
+ * threshold and the node limit left to spend. The lengths and hops, and the heuristic's guesses, are kept in a
+ * {@link StateCache} of twice as many states as the node limit, so a state it has forgotten is only searched from
+ * again.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
  */
-class City implements State<City> {
-    private final String name;
-    private final String state;
-    private final float latitude;
-    private final float longitude;
-    final NavigableSet<City> neighbors;
+class IterativeDeepeningAStar<S extends State<S>> extends SearchAlgorithm<S> {
 
     /**
-     * Create an instance of a City from a string with 4 tokens separated by whitespace.
-     * @param line
+     * The least each iteration multiplies the threshold by.
      */
-    City(String line){
-        String[] tokens = line.split("\\s+");
-        this.name = tokens[0];
-        this.state = tokens[1];
-        this.latitude = Float.parseFloat(tokens[2]);
-        this.longitude = Float.parseFloat(tokens[3]);
-        this.neighbors = new TreeSet<>(Comparator.comparing(City::name));
-    }
+    private static final float THRESHOLD_GROWTH = 1.25f;
 
-    /**
-     * Return the name of this state, in this case it is the name of the city.
-     * @return
-     */
-    @Override
-    public String name() {
-        return this.name;
-    }
+    private final Heuristic heuristic;
+    private final int nodes;
+    private final SearchContexts contexts;
 
     /**
-     * Calculate the distance of this city from the distance of another using the coordinates provided in both.
-     * @param city The other city to find the distance to.
-     * @return The distance to the other city.
+     * Create an iterative deepening A* search.
+     * @param stateSpace The statespace to search.
+     * @param heuristic An optimistic guess of the distance between two states.
+     * @param nodes The most search nodes to keep at once, which is the most hops a path can have. Twice as many
+     *              states are remembered.
+     * @param contexts The search contexts of the threads searching the statespace.
      */
-    @Override
-    public float distanceTo(City city){
-        float lat1 = this.latitude;
-        float lat2 = city.latitude;
-        float lon1 = this.longitude;
-        float lon2 = city.longitude;
-        return (float)Math.sqrt((lat1 - lat2)*(lat1 - lat2) + (lon1 - lon2)*(lon1 - lon2)) * 100;
+    IterativeDeepeningAStar(StateSpace<S> stateSpace, Heuristic heuristic, int nodes, SearchContexts contexts) {
+        super(stateSpace);
+        this.heuristic = heuristic;
+        this.nodes = nodes;
+        this.contexts = contexts;
     }
 
-    /**
-     * Get a collection of the other neighbors to this city.
-     * @return The collection of neighbors.
-     */
     @Override
-    public NavigableSet<City> neighbors() {
-        return this.neighbors;
+    String getName() {
+        return "Iterative Deepening A*";
     }
 
     /**
-     * Return a string representation of this city, which is useful for debugging (either interactively or by using
-     * print statements).
-     * @return The string representation of the city.
+     * Main execution of the algorithm.
+     *
+     * @param start The start state.
+     * @param end   The end state.
+     * @param statistics Where to count the work done. The frontier is the path being followed.
+     * @return An instance of a report that contains the list of hops from the start state to the end state,
+     * as well as any other relevant information.
      */
     @Override
-    public String toString() {
-        return name
-            + state
-            + latitude + "," + longitude
-            + this.neighbors.parallelStream()
-                .map(city -> city.name.substring(0, 3))
-                .collect(Collectors.toList());
-    }
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        int goal = end.id();
+        Context c = this.contexts.get(this, Context::new);
+        c.states.reset(goal);
+        statistics.generated++;
+        if (start.id() == goal) return this.generateResults(new int[]{goal}, 0);
 
-    /**
-     * Determine if this city is equal to another city by comparing the city names and states.
-     * @param obj The other city to compare against.
-     * @return True if the cities have the same name and state. False if they don't, or are not the same type.
-     */
-    @Override
-    public boolean equals(Object obj) {
-        if (!(obj instanceof City)) return false;
-        City city = (City)obj;
-        return this.name.equals(city.name) && this.state.equals(city.state);
+        float threshold = c.states.guess(start.id());
+        float incumbent = Float.POSITIVE_INFINITY;
+        int[] shortest = null;
+        for (;;) {
+            float exceeded = Float.POSITIVE_INFINITY;
+            c.states.nextRound();
+            c.states.record(start.id(), 0, 0);
+            c.path[0] = start.id();
+            c.next[0] = 0;
+            c.g[0] = 0;
+            int depth = 1;
+            statistics.expanded++;
+
+            while (depth > 0) {
+                int state = c.path[depth - 1];
+                Adjacency routes = stateSpace.adjacency(state);
+                if (c.next[depth - 1] >= routes.degree()) {
+                    depth--;
+                    continue;
+                }
+                int i = c.next[depth - 1]++;
+                int neighbor = routes.target(i);
+                float g = c.g[depth - 1] + routes.weight(i);
+                statistics.generated++;
+
+                if (g >= incumbent) continue;
+                int seen = c.states.recorded(neighbor);
+                if (seen >= 0 && c.states.length(seen) <= g && c.states.number(seen) <= depth) continue;
+
+                float f = g + c.states.guess(neighbor);
+                if (f >= incumbent) continue;
+                if (f > threshold) {
+                    exceeded = Math.min(exceeded, f);
+                    continue;
+                }
+                if (neighbor == goal) {
+                    incumbent = g;
+                    shortest = Arrays.copyOf(c.path, depth + 1);
+                    shortest[depth] = goal;
+                    continue;
+                }
+                if (depth == c.path.length) continue;  // Too many hops to keep
+
+                c.states.record(neighbor, g, depth);
+                if (seen >= 0) statistics.reexpanded++;
+                statistics.expanded++;
+                c.path[depth] = neighbor;
+                c.next[depth] = 0;
+                c.g[depth] = g;
+                depth++;
+                statistics.frontier(depth);
+            }
+
+            if (shortest != null) return this.generateResults(shortest, incumbent);
+            if (exceeded == Float.POSITIVE_INFINITY) return this.noResults();
+            threshold = Math.max(exceeded, threshold * THRESHOLD_GROWTH);
+        }
     }
 
     /**
-     * Calculate the hashcode for this city, which is useful for storing it inside of a HashSet or HashMap.
-     * @return The hashcode of the name multiplied by the hashcode of the state.
+     * The path being followed, as a stack of states with the index of the next neighbor to try and the g-value of each,
+     * and the shortest way to the states searched from in the current iteration, with the hops it took, as far as they
+     * are remembered. Not thread safe; each thread keeps its own.
      */
-    @Override
-    public int hashCode() {
-        return this.name.hashCode() * this.state.hashCode();
+    private class Context {
+        final StateCache states;
+        final int[] path;
+        final int[] next;
+        final float[] g;
+
+        Context(){
+            int depth = Math.max(1, Math.min(nodes, stateSpace.size()));
+            this.states = new StateCache(heuristic, 2 * nodes, stateSpace.size());
+            this.path = new int[depth];
+            this.next = new int[depth];
+            this.g = new float[depth];
+        }
     }
 }
 
+
 /**
- * A generic search algorithm.
- * @param <S> The type of state that makes up the statespace in which this search algorithm will search.
+ * Implementation of Simplified Memory-Bounded A* (Russell). It works like A*, generating one successor of the best
+ * node at a time, until it has as many search nodes as it is allowed to keep. From then on, to make room for each new
+ * node it forgets the leaf of the search tree with the highest f-value, shallowest first, and the leaf's parent
+ * remembers the f-value of the best descendant it has forgotten. Once every successor of a node has been generated, its
+ * f-value is backed up to the best of its children and forgotten descendants, so the tree always knows roughly how
+ * good the parts it has forgotten were, and a node whose forgotten successors become the best option again generates
+ * them again. A path needing more nodes than are allowed can't be found, so the search degrades to finding nothing
+ * rather than running out of memory. With too few nodes for everything that ties with the path's f-value, though, it
+ * spends its time forgetting and generating the same nodes over again, so it gives up, and finds nothing, once it has
+ * generated {@link #GENERATIONS_PER_STATE} nodes for every state in the statespace.
+ * <p>
+ * A successor is not kept if some node already in memory reached its state by a path that is no longer, since
+ * anything found through it could be found more cheaply through that node. Those nodes, and the heuristic's guesses,
+ * are kept in a {@link StateCache} of twice as many states as there are nodes, so a state it has forgotten only costs
+ * a successor kept that could have been left out.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
  */
-abstract class SearchAlgorithm<S extends State<S>> {
+class SimplifiedMemoryBoundedAStar<S extends State<S>> extends SearchAlgorithm<S> {
+
+    static final int GENERATIONS_PER_STATE = 16;
+
+    private final Heuristic heuristic;
+    private final int nodes;
+    private final SearchContexts contexts;
+
     /**
-     * Get the name of the algorithm extending this abstract search algorithm.
-     * @return The name of the search algorithm.
+     * Create a simplified memory-bounded A* search.
+     * @param stateSpace The statespace to search.
+     * @param heuristic An optimistic guess of the distance between two states.
+     * @param nodes The most search nodes to keep at once. At least two.
+     * @param contexts The search contexts of the threads searching the statespace.
      */
-    abstract String getName();
+    SimplifiedMemoryBoundedAStar(StateSpace<S> stateSpace, Heuristic heuristic, int nodes, SearchContexts contexts) {
+        super(stateSpace);
+        if (nodes < 2) throw new IllegalArgumentException("SMA* needs room for at least two nodes");
+        this.heuristic = heuristic;
+        this.nodes = nodes;
+        this.contexts = contexts;
+    }
+
+    @Override
+    String getName() {
+        return "Simplified Memory-Bounded A*";
+    }
 
     /**
-     * Executes the algorithm and returns the results.
+     * Main execution of the algorithm.
+     *
      * @param start The start state.
-     * @param end The end state.
-     * @return Results containing the list of hops on the path that the algorithm found, the length of the path,
-     *         and some other relevant information.
+     * @param end   The end state.
+     * @param statistics Where to count the work done. Nodes whose forgotten successors are generated again count as
+     *                   expanded again.
+     * @return An instance of a report that contains the list of hops from the start state to the end state,
+     * as well as any other relevant information.
      */
-    abstract Results<S, SearchAlgorithm<S>> execute(S start, S end);
-
-    final Set<S> stateSpace;
+    @Override
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        Tree tree = this.contexts.get(this, () -> new Tree(this.heuristic, this.nodes));
+        return tree.search(start.id(), end.id(), statistics);
+    }
 
     /**
-     * Default constructor that implementing algorithms will call.
-     * @param stateSpace
+     * The search tree, kept in fixed arrays indexed by node, with the children of each node in a doubly linked list.
+     * Not thread safe; each thread keeps its own.
      */
-    SearchAlgorithm(Set<S> stateSpace){
-        this.stateSpace = stateSpace;
-    }
+    private class Tree {
+        final int capacity;
+        final int[] state;
+        final int[] parent;
+        final int[] depth;
+        final int[] next;
+        final int[] children;
+        final int[] firstChild;
+        final int[] nextSibling;
+        final int[] previousSibling;
+        final float[] g;
+        final float[] f;
+        final float[] forgotten;
+        final int[] free;
+        int freeCount;
+        int used;
+
+        /**
+         * Nodes with successors still to generate, lowest f-value and then deepest first.
+         */
+        final IndexedHeap open;
+
+        /**
+         * Nodes without children, highest f-value and then shallowest first.
+         */
+        final IndexedHeap leaves;
 
-    Results<S, SearchAlgorithm<S>> generateResults(SearchNode end){
-        float length = end.g;
+        /**
+         * The node with the shortest path to each state, as far as it is remembered, and the heuristic's guesses.
+         */
+        final StateCache states;
+        int goal;
 
-        LinkedList<S> path = new LinkedList<>();
-        while (!end.state.equals(end.parent.state)) {
-            path.addFirst(end.state);
-            end = end.parent;
+        Tree(Heuristic heuristic, int capacity){
+            this.capacity = capacity;
+            this.state = new int[capacity];
+            this.parent = new int[capacity];
+            this.depth = new int[capacity];
+            this.next = new int[capacity];
+            this.children = new int[capacity];
+            this.firstChild = new int[capacity];
+            this.nextSibling = new int[capacity];
+            this.previousSibling = new int[capacity];
+            this.g = new float[capacity];
+            this.f = new float[capacity];
+            this.forgotten = new float[capacity];
+            this.free = new int[capacity];
+            this.open = new IndexedHeap(capacity);
+            this.leaves = new IndexedHeap(capacity);
+            this.states = new StateCache(heuristic, 2 * capacity, stateSpace.size());
         }
-        path.addFirst(end.state);
 
-        return new Results<>(path, length, this);
-    }
+        Results<S, SearchAlgorithm<S>> search(int start, int goal, SearchStatistics statistics){
+            this.states.reset(goal);
+            this.goal = goal;
+            this.open.clear();
+            this.leaves.clear();
+            this.used = 0;
+            this.freeCount = 0;
 
-    /**
-     * A basic search node. Has the parent, the state it represents, and the step and cumulative costs.
-     */
-    class SearchNode {
-        final SearchNode parent;
-        final S state;
-        final float stepCost;
-        final float g;
+            this.place(this.add(start, -1, 0, this.states.guess(start)));
+            statistics.generated++;
 
-        SearchNode(SearchNode parent, S state){
-            if (parent == null) parent = this;
-            this.parent = parent;
-            this.state = state;
-            this.stepCost = parent.state.distanceTo(state);
-            this.g = parent.g + this.stepCost;
+            long limit = statistics.generated + (long) GENERATIONS_PER_STATE * stateSpace.size();
+            while (!this.open.isEmpty() && statistics.generated < limit) {
+                statistics.frontier(this.open.size());
+                int node = this.open.peek();
+                if (this.open.key(node) == Float.POSITIVE_INFINITY) break;  // Nothing left that fits in memory
+                if (this.state[node] == goal) return this.path(node);
+
+                Adjacency routes = stateSpace.adjacency(this.state[node]);
+                if (this.next[node] >= routes.degree()) {
+                    // Every successor has been generated, and some forgotten since. Go through them again.
+                    this.next[node] = 0;
+                    this.forgotten[node] = Float.POSITIVE_INFINITY;
+                    statistics.reexpanded++;
+                } else if (this.next[node] == 0) {
+                    statistics.expanded++;
+                }
+
+                int i = this.next[node]++;
+                int neighbor = routes.target(i);
+                float g = this.g[node] + routes.weight(i);
+                if (!this.dominated(node, neighbor, g)) {
+                    // A node at the last depth that fits can't lead anywhere unless it is the end state itself.
+                    float f = neighbor != goal && this.depth[node] + 2 >= this.capacity ? Float.POSITIVE_INFINITY
+                        : Math.max(this.f[node], g + this.states.guess(neighbor));
+                    statistics.generated++;
+                    if (this.used - this.freeCount < this.capacity || this.forgetLeaf(node, f)) {
+                        this.place(this.add(neighbor, node, g, f));
+                    } else {
+                        // Nothing in memory is worse than the successor, so it is the one forgotten.
+                        this.forgotten[node] = Math.min(this.forgotten[node], f);
+                    }
+                }
+                if (this.next[node] >= routes.degree()) this.backUp(node);
+                this.place(node);
+            }
+            return noResults();
         }
-    }
 
-    /**
-     * A generic results report for a search algorithm. Parameterized by the state and algorithm types.
-     * @param <S> The state type.
-     * @param <A> The algorithm type.
-     */
-    class Results<S extends State<S>, A extends SearchAlgorithm<S>> {
-        private List<S> hops;
-        private float distance;
-        private A algorithm;
+        /**
+         * @return True if a node already in memory reached the state by a path that is no longer, or a child of the
+         * node is already the state.
+         */
+        boolean dominated(int node, int state, float g){
+            int shortest = this.states.recorded(state);
+            if (shortest >= 0 && this.states.length(shortest) <= g) return true;
+            for (int child = this.firstChild[node]; child >= 0; child = this.nextSibling[child]) {
+                if (this.state[child] == state) return true;
+            }
+            return false;
+        }
+
+        int add(int state, int parent, float g, float f){
+            int node = this.freeCount > 0 ? this.free[--this.freeCount] : this.used++;
+            this.state[node] = state;
+            this.parent[node] = parent;
+            this.depth[node] = parent < 0 ? 0 : this.depth[parent] + 1;
+            this.next[node] = 0;
+            this.children[node] = 0;
+            this.firstChild[node] = -1;
+            this.previousSibling[node] = -1;
+            this.nextSibling[node] = -1;
+            this.g[node] = g;
+            this.f[node] = f;
+            this.forgotten[node] = Float.POSITIVE_INFINITY;
+            if (parent >= 0) {
+                int sibling = this.firstChild[parent];
+                this.nextSibling[node] = sibling;
+                if (sibling >= 0) this.previousSibling[sibling] = node;
+                this.firstChild[parent] = node;
+                this.children[parent]++;
+                this.leaves.remove(parent);
+            }
+            int shortest = this.states.recorded(state);
+            if (shortest < 0 || g < this.states.length(shortest)) this.states.record(state, g, node);
+            return node;
+        }
 
         /**
-         * Return a string report of the algorithm's results. Prints the states in the solution path, the length of the
-         * path, and how many hops in the path.
-         * @return
+         * Forget the worst leaf other than the node being expanded, which the tree always has once it is full: the
+         * node is never at the last depth that fits, so the tree can't be a single path ending at it. A leaf no worse
+         * than the new successor, or no worse than the node being expanded (the best open node), is never forgotten,
+         * since the search would only come straight back for it and forget something just as good to make room.
+         * @param expanding The node being expanded.
+         * @param f The f-value of the successor that needs the room.
+         * @return Whether a leaf was forgotten.
          */
-        String resultsString(){
-            StringJoiner sj = new StringJoiner("")
-                .add("\n")
-                .add(algorithm.getName())
-                .add(" Search Results:\n");
-            for(S hop: hops){
-                sj.add(hop.name()).add("\n");
+        boolean forgetLeaf(int expanding, float f){
+            int leaf = this.leaves.poll();
+            if (leaf == expanding) {
+                leaf = this.leaves.poll();
+                this.leaves.offer(expanding, -this.f[expanding], this.depth[expanding]);
             }
+            if (this.f[leaf] <= f || this.f[leaf] <= this.open.key(expanding)) {
+                this.leaves.offer(leaf, -this.f[leaf], this.depth[leaf]);
+                return false;
+            }
+            this.open.remove(leaf);
 
-            sj.add("That took ").add(String.valueOf(hops.size() - 1)).add(" hops to find.\n");
-            sj.add("Total distance = ").add(String.valueOf(Math.round(distance))).add(" miles.\n");
-            return sj.toString();
+            int parent = this.parent[leaf];
+            this.forgotten[parent] = Math.min(this.forgotten[parent], this.f[leaf]);
+            if (this.previousSibling[leaf] >= 0) this.nextSibling[this.previousSibling[leaf]] = this.nextSibling[leaf];
+            else this.firstChild[parent] = this.nextSibling[leaf];
+            if (this.nextSibling[leaf] >= 0) this.previousSibling[this.nextSibling[leaf]] = this.previousSibling[leaf];
+            this.children[parent]--;
+            int shortest = this.states.recorded(this.state[leaf]);
+            if (shortest >= 0 && this.states.number(shortest) == leaf) this.states.forget(shortest);
+            this.free[this.freeCount++] = leaf;
+            this.place(parent);
+            return true;
         }
 
         /**
-         * Create an instance of the report.
-         * @param hops The list of hop (each hop is a state) in the solution path.
-         * @param distance The length of the solution path.
-         * @param algorithm The algorithm used to search.
+         * Raise the f-value of a node whose successors have all been generated to the best of its children and
+         * forgotten descendants, and carry the change up to its ancestors. A node that has forgotten successors no
+         * worse than itself is raised anyway, by the smallest step a float can take, so that going through its
+         * successors again always happens at a higher f-value than the last time and ties can't go round for ever.
          */
-        Results(List<S> hops, float distance, A algorithm){
-            this.hops = hops;
-            this.distance = distance;
-            this.algorithm = algorithm;
+        void backUp(int node){
+            while (node >= 0 && this.next[node] >= stateSpace.degree(this.state[node])) {
+                float best = this.forgotten[node];
+                for (int child = this.firstChild[node]; child >= 0; child = this.nextSibling[child]) {
+                    best = Math.min(best, this.f[child]);
+                }
+                if (this.forgotten[node] <= this.f[node]) best = Math.max(best, Math.nextUp(this.f[node]));
+                if (best <= this.f[node]) return;
+                this.f[node] = best;
+                this.place(node);
+                node = this.parent[node];
+            }
         }
-    }
 
+        /**
+         * Put a node on, or take it off, the open list and the leaves, after anything about it has changed. A node for
+         * the end state stays open so that it can be picked. A node that has generated all its successors is only open
+         * for the ones it has forgotten, and is ordered by the best of those rather than by its own f-value, so it is
+         * not picked to generate them again while there are better nodes to expand.
+         */
+        void place(int node){
+            int degree = stateSpace.degree(this.state[node]);
+            if (this.next[node] < degree || this.state[node] == this.goal) {
+                this.open.offer(node, this.f[node], -this.depth[node]);
+            } else if (this.forgotten[node] != Float.POSITIVE_INFINITY) {
+                this.open.offer(node, Math.max(this.f[node], this.forgotten[node]), -this.depth[node]);
+            } else {
+                this.open.remove(node);
+            }
+            if (this.children[node] == 0) this.leaves.offer(node, -this.f[node], this.depth[node]);
+            else this.leaves.remove(node);
+        }
 
+        Results<S, SearchAlgorithm<S>> path(int node){
+            int[] hops = new int[this.depth[node] + 1];
+            for (int n = node; n >= 0; n = this.parent[n]) hops[this.depth[n]] = this.state[n];
+            return generateResults(hops, this.g[node]);
+        }
+    }
 }
 
 
-/*
- * Implementations of search algorithms live down here.
- */
-
 /**
- * Implementation of the A* search algorithm.
+ * Implementation of Anytime Repairing A* (Likhachev, Gordon and Thrun). It first runs a weighted A*, which inflates
+ * the heuristic by a factor and so finds a path quickly that is at most that factor longer than the shortest. Then,
+ * while there is time left, it lowers the factor and repairs the search instead of starting over: states whose g-value
+ * improved after they were expanded in the current round wait on a list of inconsistent states, and go back on the
+ * frontier, with every other state on it re-keyed, when the next round starts. Each round's path is kept, so running
+ * out of time in the middle of a round still answers with the previous one. The first path is always found, however
+ * long it takes; only the rounds after it watch the clock.
+ * <p>
+ * The results carry the best bound known on how much longer than the shortest path the path is, which is the factor
+ * or, if smaller, the length of the path over the smallest f-value still waiting to be expanded.
  * @param <S> The type of state that makes up the statespace in which it will be performing its search.
  */
-class AStar<S extends State<S>> extends SearchAlgorithm<S> {
+class AnytimeRepairingAStar<S extends State<S>> extends SearchAlgorithm<S> {
+
+    private static final float INITIAL_WEIGHT = 2.5f;
+    private static final float WEIGHT_STEP = 0.5f;
+
+    /**
+     * How many states to expand between looks at the clock.
+     */
+    private static final int CLOCK_INTERVAL = 256;
+
+    private final Heuristic heuristic;
+    private final long budget;
+    private final SearchContexts contexts;
 
-    AStar(Set<S> stateSpace) {
+    /**
+     * Create an anytime search.
+     * @param stateSpace The statespace to search.
+     * @param heuristic An optimistic guess of the distance between two states.
+     * @param budget How long, in nanoseconds, each search may spend improving on its first path.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    AnytimeRepairingAStar(StateSpace<S> stateSpace, Heuristic heuristic, long budget, SearchContexts contexts) {
         super(stateSpace);
+        this.heuristic = heuristic;
+        this.budget = budget;
+        this.contexts = contexts;
     }
 
     @Override
     String getName() {
-        return "A*";
+        return "Anytime Repairing A*";
     }
 
     /**
@@ -354,66 +6507,208 @@ class AStar<S extends State<S>> extends SearchAlgorithm<S> {
      *
      * @param start The start state.
      * @param end   The end state.
+     * @param statistics Where to count the work done, over every round.
      * @return An instance of a report that contains the list of hops from the start state to the end state,
      * as well as any other relevant information.
      */
     @Override
-    public Results<S, SearchAlgorithm<S>> execute(S start, S end) {
-        Map<S, Float> h = stateSpace.stream().collect(Collectors.toMap(
-            Function.identity(),
-            e -> e.distanceTo(end)
-        ));
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        long deadline = System.nanoTime() + this.budget;
+        int goal = end.id();
+        Context c = this.contexts.get(this, Context::new);
+        c.reset(this.contexts.get(0), goal);
 
-        AStarNode node = new AStarNode(null, start, h::get);
-        SortedSet<AStarNode> frontier = new TreeSet<>();
-        frontier.add(node);
+        c.reach(start.id(), 0, start.id());
+        c.frontier.offer(start.id(), INITIAL_WEIGHT * c.h.get(start.id()), 0);
+        statistics.generated++;
 
-        while (!frontier.isEmpty()) {
-            node = frontier.first();
-            frontier.remove(node);
+        float weight = INITIAL_WEIGHT;
+        int[] path = null;
+        float length = Float.POSITIVE_INFINITY;
+        float bound = Float.POSITIVE_INFINITY;
+        IntList waiting = new IntList();
+        for (;;) {
+            if (!c.improvePath(weight, path == null ? Long.MAX_VALUE : deadline, statistics)) break;
+            if (!c.reached(goal)) return this.noResults();
+            path = c.path(start.id());
+            length = c.g[goal];
 
-            if (node.state.equals(end)) break;
+            // Take everything off the frontier, and with the inconsistent states it makes up what is left to expand.
+            // The smallest f-value among them bounds how short a path could be.
+            waiting.clear();
+            while (!c.frontier.isEmpty()) waiting.add(c.frontier.poll());
+            for (int i = 0; i < c.inconsistent.size(); i++) waiting.add(c.inconsistent.get(i));
+            c.inconsistent.clear();
+            float least = Float.POSITIVE_INFINITY;
+            for (int i = 0; i < waiting.size(); i++) {
+                int state = waiting.get(i);
+                least = Math.min(least, c.g[state] + c.h.get(state));
+            }
+            bound = least >= length ? 1 : Math.max(1, Math.min(weight, length / least));
+            if (bound == 1 || System.nanoTime() >= deadline) break;
 
-            for (S neighborState : node.state.neighbors()) {
-                AStarNode child = new AStarNode(node, neighborState, h::get);
-                frontier.add(child);
+            weight = Math.max(1, weight - WEIGHT_STEP);
+            c.nextRound();
+            for (int i = 0; i < waiting.size(); i++) {
+                int state = waiting.get(i);
+                c.frontier.offer(state, c.g[state] + weight * c.h.get(state), c.g[state]);
             }
         }
-
-        return this.generateResults(node);
+        return this.generateResults(path, length, bound);
     }
 
     /**
-     * Extending the default search because we need to track the f-value and h-value.
+     * One search, kept between its rounds. The g-values, parents, frontier and heuristic memo are those of the thread's
+     * search context, whose closed states are the ones expanded in any round; only the states closed and listed as
+     * inconsistent in the current round are kept here, stamped with the round so that starting one does not have to
+     * clear anything. Not thread safe; each thread keeps its own.
      */
-    private class AStarNode extends SearchNode implements Comparable<AStarNode> {
-        final float h;
-        final float f;
+    private class Context {
+        final int[] closed;
+        final int[] listed;
+        final IntList inconsistent = new IntList();
+        SearchContext search;
+        HeuristicMemo h;
+        IndexedHeap frontier;
+        float[] g;
+        int[] parent;
+        int round;
+        int goal;
+
+        Context(){
+            this.closed = new int[stateSpace.size()];
+            this.listed = new int[stateSpace.size()];
+        }
+
+        void reset(SearchContext search, int goal){
+            search.reset();
+            this.search = search;
+            this.h = search.memo();
+            this.h.reset(heuristic, goal);
+            this.frontier = search.heap();
+            this.g = search.g;
+            this.parent = search.parent;
+            this.goal = goal;
+            this.inconsistent.clear();
+            this.nextRound();
+        }
+
+        void nextRound(){
+            if (++this.round == 0) {
+                Arrays.fill(this.closed, 0);
+                Arrays.fill(this.listed, 0);
+                this.round = 1;
+            }
+        }
+
+        boolean reached(int state){
+            return this.search.reached(state);
+        }
+
+        void reach(int state, float g, int parent){
+            this.search.reach(state, parent, g);
+        }
 
         /**
-         * Create an instance of a node on the search tree.
-         *
-         * @param parent The parent node to which this node will point.
-         * @param state  A state in the statespace that this node represents.
-         * @param h      A heuristic function that provides an optimistic guess of the distance between the current
-         *               state and the end state.
+         * Expand states until none left on the frontier could lead to a shorter path to the end state than the one
+         * known, with the heuristic inflated by a weight.
+         * @return False if the deadline passed first.
          */
-        AStarNode(AStarNode parent, S state, Function<S, Float> h) {
-            super(parent, state);
-            this.h = h.apply(state);
-            this.f = super.g + this.h;
+        boolean improvePath(float weight, long deadline, SearchStatistics statistics){
+            int expansions = 0;
+            while (!this.frontier.isEmpty()
+                && (!this.reached(this.goal) || this.g[this.goal] > this.frontier.key(this.frontier.peek()))) {
+                if (++expansions % CLOCK_INTERVAL == 0 && System.nanoTime() >= deadline) return false;
+                statistics.frontier(this.frontier.size());
+                int state = this.frontier.poll();
+                this.closed[state] = this.round;
+                if (this.search.closed(state)) statistics.reexpanded++;
+                this.search.close(state);
+                statistics.expanded++;
+
+                Adjacency routes = stateSpace.adjacency(state);
+                for (int i = 0, degree = routes.degree(); i < degree; i++) {
+                    int neighbor = routes.target(i);
+                    float g = this.g[state] + routes.weight(i);
+                    if (this.reached(neighbor) && g >= this.g[neighbor]) continue;
+                    this.reach(neighbor, g, state);
+                    statistics.generated++;
+                    if (this.closed[neighbor] != this.round) {
+                        this.frontier.offer(neighbor, g + weight * this.h.get(neighbor), g);
+                    } else if (this.listed[neighbor] != this.round) {
+                        this.listed[neighbor] = this.round;
+                        this.inconsistent.add(neighbor);
+                    }
+                }
+            }
+            return true;
         }
 
         /**
-         * Comapre this node to any other node, on the basis of the nodes' f-values.
-         *
-         * @param o The other node to compare against.
-         * @return 0 if the nodes are the same, <0 if this node is less, and >0 if this node is greater.
+         * @return The states on the path to the end state, following the parents back to the start state.
          */
-        @Override
-        public int compareTo(AStarNode o) {
-            return Float.compare(this.f, o.f);
+        int[] path(int start){
+            IntList path = new IntList();
+            for (int state = this.goal; state != start; state = this.parent[state]) {
+                if (path.size() == stateSpace.size()) throw new IllegalStateException("No way back to the start");
+                path.add(state);
+            }
+            path.add(start);
+            int[] hops = path.toArray();
+            for (int i = 0, j = hops.length - 1; i < j; i++, j--) {
+                int hop = hops[i];
+                hops[i] = hops[j];
+                hops[j] = hop;
+            }
+            return hops;
+        }
+    }
+}
+
+
+/**
+ * Answers from a cache when it can, and otherwise asks another algorithm and remembers what it said. If the other
+ * algorithm always finds shortest paths, a path between two states answers the query in both directions, so each pair
+ * is only ever worked out once; the answer is always worked out from the state with the smaller id, so it does not
+ * depend on which direction happened to be asked first.
+ * @param <S> The type of state that makes up the statespace in which it will be performing its search.
+ */
+class CachingSearch<S extends State<S>> extends SearchAlgorithm<S> {
+
+    private final SearchAlgorithm<S> algorithm;
+    private final RouteCache<S> cache;
+
+    CachingSearch(SearchAlgorithm<S> algorithm, RouteCache<S> cache) {
+        super(algorithm.stateSpace);
+        this.algorithm = algorithm;
+        this.cache = cache;
+    }
+
+    @Override
+    String getName() {
+        return this.algorithm.getName();
+    }
+
+    @Override
+    boolean findsShortestPaths() {
+        return this.algorithm.findsShortestPaths();
+    }
+
+    @Override
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        boolean flip = this.algorithm.findsShortestPaths() && start.id() > end.id();
+        S from = flip ? end : start;
+        S to = flip ? start : end;
+
+        // The cached results are shared, so the statistics go on a copy. A hit did no searching at all.
+        long generation = this.cache.generation();
+        Results<S, SearchAlgorithm<S>> results = this.cache.get(this.getName(), from.id(), to.id());
+        if (results == null) {
+            results = this.algorithm.execute(from, to);
+            this.cache.put(generation, this.getName(), from.id(), to.id(), results);
+            statistics.add(results.statistics());
         }
+        return flip ? results.reversed() : results.copy();
     }
 }
 
@@ -424,8 +6719,16 @@ class AStar<S extends State<S>> extends SearchAlgorithm<S> {
  */
 class DepthFirst<S extends State<S>> extends SearchAlgorithm<S>{
 
-    DepthFirst(Set<S> stateSpace) {
+    private final SearchContexts contexts;
+
+    /**
+     * Create a depth-first search.
+     * @param stateSpace The statespace to search.
+     * @param contexts The search contexts of the threads searching the statespace.
+     */
+    DepthFirst(StateSpace<S> stateSpace, SearchContexts contexts) {
         super(stateSpace);
+        this.contexts = contexts;
     }
 
     @Override
@@ -438,39 +6741,46 @@ class DepthFirst<S extends State<S>> extends SearchAlgorithm<S>{
      *
      * @param start The start state.
      * @param end   The end state.
+     * @param statistics Where to count the work done.
      * @return An instance of a report that contains the list of hops from the start state to the end state,
      * as well as any other relevant information.
      */
     @Override
-    Results<S, SearchAlgorithm<S>> execute(S start, S end) {
-        Set<S> visited = new HashSet<>();
-        LinkedList<SearchNode> frontier = new LinkedList<>();
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        int goal = end.id();
+        SearchContext c = this.contexts.get(0);
+        c.reset();
 
-        SearchNode node = new SearchNode(null, start);
-        frontier.push(node);
+        // A state is reached once it has been pushed onto the frontier, and stays reached after it is expanded, so one
+        // stamp answers both "visited" and "already in the frontier". Each state is pushed at most once.
+        int[] frontier = c.frontier;
+        int size = 0;
 
-        outer:
-        while (!frontier.isEmpty()){
-            node = frontier.pop();
+        c.reach(start.id(), start.id(), 0);
+        frontier[size++] = start.id();
+        statistics.generated++;
 
-            if (node.state.equals(end)) break;
-            visited.add(node.state);
+        while (size > 0){
+            statistics.frontier(size);
+            int state = frontier[--size];
 
-            for(S neighborState: node.state.neighbors().descendingSet()){
-                SearchNode child = new SearchNode(node, neighborState);
+            if (state == goal) return this.generateResults(c, state);
+            statistics.expanded++;
 
-                if (child.state.equals(end)) {
-                    node = child;
-                    break outer;
-                }
+            Adjacency routes = stateSpace.adjacency(state);
+            for(int i = routes.degree() - 1; i >= 0; i--){
+                int neighbor = routes.target(i);
+                if (neighbor != goal && c.reached(neighbor)) continue;
 
-                if(!visited.contains(child.state) && frontier.stream().noneMatch(n -> child.state.equals(n.state))){
-                    frontier.push(child);
-                }
+                c.reach(neighbor, state, c.g[state] + routes.weight(i));
+                statistics.generated++;
+                if (neighbor == goal) return this.generateResults(c, neighbor);
+
+                frontier[size++] = neighbor;
             }
         }
 
-        return this.generateResults(node);
+        return this.noResults();
     }
 }
 
@@ -482,13 +6792,17 @@ class DepthFirst<S extends State<S>> extends SearchAlgorithm<S>{
  */
 class BreadthFirst<S extends State<S>> extends SearchAlgorithm<S> {
 
+    private final SearchContexts contexts;
+
     /**
      * Default constructor that implementing algorithms will call.
      *
      * @param stateSpace
+     * @param contexts The search contexts of the threads searching the statespace.
      */
-    BreadthFirst(Set<S> stateSpace) {
+    BreadthFirst(StateSpace<S> stateSpace, SearchContexts contexts) {
         super(stateSpace);
+        this.contexts = contexts;
     }
 
     @Override
@@ -501,40 +6815,47 @@ class BreadthFirst<S extends State<S>> extends SearchAlgorithm<S> {
      *
      * @param start The start state.
      * @param end   The end state.
+     * @param statistics Where to count the work done.
      * @return An instance of a report that contains the list of hops from the start state to the end state,
      * as well as any other relevant information.
      */
     @Override
-    Results<S, SearchAlgorithm<S>> execute(S start, S end) {
-        SearchNode node = new SearchNode(null, start);
+    Results<S, SearchAlgorithm<S>> search(S start, S end, SearchStatistics statistics) {
+        int goal = end.id();
+        SearchContext c = this.contexts.get(0);
+        c.reset();
 
-        Set<S> visited = new HashSet<>();
-        LinkedList<SearchNode> frontier = new LinkedList<>();
+        // A state is reached once it has been added to the frontier, and stays reached after it is expanded, so one
+        // stamp answers both "visited" and "already in the frontier". Each state is added at most once, so the queue
+        // never wraps around.
+        int[] frontier = c.frontier;
+        int head = 0;
+        int tail = 0;
 
-        frontier.push(node);
+        c.reach(start.id(), start.id(), 0);
+        frontier[tail++] = start.id();
+        statistics.generated++;
 
-        outer:
-        while (!frontier.isEmpty()){
-            node = frontier.pop();
+        while (head < tail){
+            statistics.frontier(tail - head);
+            int state = frontier[head++];
 
-            if (node.state.equals(end)) break;
-            visited.add(node.state);
+            if (state == goal) return this.generateResults(c, state);
+            statistics.expanded++;
 
-            for(S neighborState: node.state.neighbors()){
-                SearchNode child = new SearchNode(node, neighborState);
+            Adjacency routes = stateSpace.adjacency(state);
+            for(int i = 0, degree = routes.degree(); i < degree; i++){
+                int neighbor = routes.target(i);
+                if (neighbor != goal && c.reached(neighbor)) continue;
 
-                if (child.state.equals(end)) {
-                    node = child;
-                    break outer;
-                }
+                c.reach(neighbor, state, c.g[state] + routes.weight(i));
+                statistics.generated++;
+                if (neighbor == goal) return this.generateResults(c, neighbor);
 
-                if(!visited.contains(child.state) && frontier.stream().noneMatch(n -> child.state.equals(n.state))){
-                    frontier.add(child);
-                }
+                frontier[tail++] = neighbor;
             }
         }
 
-        return this.generateResults(node);
+        return this.noResults();
     }
 }
-
@@ -29,18 +29,72 @@ public class ESS {
         "Each resource is worth: %d%n" +
         "Cost of Hawk-Hawk interaction: %d";
 
-    private static int interactionCount = 0;
+    private static final String AGGREGATE_STATS =
+        "Interactions: %d\tHawks: %d\tDoves: %d\tDead: %d\tMean Hawk resources: %.1f\tMean Dove resources: %.1f";
+
+    private static final String USAGE =
+        "Usage: ./project02 [-run N] [-every N] [-seed S] [-script file]\n" +
+        "                   popSize [percentHawks] [resourceAmt] [costHawk-Hawk]\n" +
+        "  -run N       run N interactions without the menu, then print the aggregate statistics\n" +
+        "  -every N     while running without the menu, print the aggregate statistics every N interactions\n" +
+        "  -seed S      seed the random number generator, to repeat a simulation\n" +
+        "  -script file run the commands in file without the menu, one per line: \"run N\", \"every N\" or \"stats\",\n" +
+        "               then print the aggregate statistics; not with -run";
+
+    private static long interactionCount = 0;
+
+    /**
+     * The number of interactions when the aggregate statistics were last printed, or -1 if they haven't been.
+     */
+    private static long reportedAt = -1;
+
+    private static SplittableRandom random = new SplittableRandom();
 
     /**
      * Main execution entrypoint of the application.
-     * @param args popSize [percentHawks] [resourceAmt] [costHawk-Hawk]
+     * @param args [-run N] [-every N] [-seed S] [-script file] popSize [percentHawks] [resourceAmt] [costHawk-Hawk]
      * @throws IOException Thrown if something happens.
      */
     public static void main(String[] args) throws IOException {
 
+        // The flags for running without the menu come before the rest.
+        long runCount = 0;
+        long reportInterval = 0;
+        String scriptFile = null;
+        int flags = 0;
+        for(; flags < args.length && args[flags].startsWith("-"); flags += 2){
+            if (flags + 1 >= args.length) usage();
+            try {
+                switch (args[flags]){
+                    case "-run":
+                        runCount = Long.parseLong(args[flags + 1]);
+                        if (runCount < 1) usage();
+                        break;
+                    case "-every":
+                        reportInterval = Long.parseLong(args[flags + 1]);
+                        if (reportInterval < 1) usage();
+                        break;
+                    case "-seed":
+                        random = new SplittableRandom(Long.parseLong(args[flags + 1]));
+                        break;
+                    case "-script":
+                        scriptFile = args[flags + 1];
+                        break;
+                    default:
+                        usage();
+                }
+            } catch (NumberFormatException e) {
+                usage();
+            }
+        }
+        args = Arrays.copyOfRange(args, flags, args.length);
+
+        // Running without the menu takes either a count or a script, and reporting only means something without it.
+        if (runCount > 0 && scriptFile != null || reportInterval > 0 && runCount == 0 && scriptFile == null){
+            usage();
+        }
         if (args.length < 1 || args.length > 4){
-            System.err.println("Usage: ./project02 popSize [percentHawks] [resourceAmt] [costHawk-Hawk]");
-            System.exit(1);
+            usage();
         }
 
         int populationSize = Integer.parseInt(args[0]);
@@ -63,19 +117,25 @@ public class ESS {
         int numHawks = (int) (populationSize * (percentHawks / 100f));
         int numDoves = populationSize - numHawks;
 
-        List<Individual> population = new ArrayList<>();
-
-        // Create the population.
-        for(int i = 0; i < numHawks; i++){
-            population.add(new Individual(Individual.Strategy.HAWK));
-        }
-        for(int i = 0; i < numDoves; i++){
-            population.add(new Individual(Individual.Strategy.DOVE));
+        // Create the population, hawks first.
+        Population population = new Population(numHawks, numDoves);
+
+        if (runCount > 0 || scriptFile != null) {
+            System.out.println(getStartingStats(populationSize, percentHawks, resourceAmount, hawkHawkCost));
+            if (scriptFile != null) {
+                try (BufferedReader script = new BufferedReader(new FileReader(scriptFile))) {
+                    reportInterval = runScript(script, population, reportInterval, resourceAmount, hawkHawkCost);
+                }
+            } else {
+                runInteractions(population, runCount, reportInterval, resourceAmount, hawkHawkCost);
+            }
+            // Unless the last report was of the final state already.
+            if (reportedAt != interactionCount) {
+                report(population);
+            }
+            return;
         }
 
-        // Create a separate list dedicated for maintaining a list of alive population members.
-        List<Individual> alivePopulation = new ArrayList<>(population);
-
         BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
 
         // Main execution loop
@@ -98,14 +158,14 @@ public class ESS {
                     break;
                 case "4":
                     for(int i = 0; i < 1000; i++) {
-                        if (population.size() < 2) break;
-                        System.out.println(runInteraction(alivePopulation, resourceAmount, hawkHawkCost));
+                        if (population.living < 2) break;
+                        System.out.println(runInteraction(population, resourceAmount, hawkHawkCost));
                     }
                     break;
                 case "5":
                     for(int i = 0; i < 10000; i++) {
-                        if (population.size() < 2) break;
-                        System.out.println(runInteraction(alivePopulation, resourceAmount, hawkHawkCost));
+                        if (population.living < 2) break;
+                        System.out.println(runInteraction(population, resourceAmount, hawkHawkCost));
                     }
                     break;
                 case "6":
@@ -114,13 +174,14 @@ public class ESS {
                     int N = Integer.parseInt(line);
 
                     for(int i = 0; i < N; i++) {
-                        if (population.size() < 2) break;
-                        System.out.println(runInteraction(alivePopulation, resourceAmount, hawkHawkCost));
+                        if (population.living < 2) break;
+                        System.out.println(runInteraction(population, resourceAmount, hawkHawkCost));
                     }
                     break;
                 case "7":
                     do {
-                        System.out.println(runInteraction(alivePopulation, resourceAmount, hawkHawkCost));
+                        if (population.living < 2) break;
+                        System.out.println(runInteraction(population, resourceAmount, hawkHawkCost));
                     } while(!input.readLine().equals("Stop"));
                     break;
                 case "8":
@@ -130,6 +191,167 @@ public class ESS {
 
     }
 
+    private static void usage(){
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    /**
+     * Run the commands in a script, one per line: "run N" to have N interactions, "every N" to print the aggregate
+     * statistics every N interactions from then on (0 to stop), and "stats" to print them now. Blank lines and lines
+     * starting with # are skipped.
+     * @param script The script.
+     * @param population The population.
+     * @param reportInterval How often to print the aggregate statistics until the script says otherwise, or 0 for
+     *                       never.
+     * @param resourceAmount The resources that are at stake for each interaction.
+     * @param hawkHawkCost The cost of two hawks fighting each other.
+     * @return How often the aggregate statistics were being printed when the script ended, or 0 for never.
+     * @throws IOException If the script can't be read.
+     */
+    private static long runScript(BufferedReader script, Population population, long reportInterval,
+                                  int resourceAmount, int hawkHawkCost) throws IOException {
+        int lineNumber = 0;
+        for(String line = script.readLine(); line != null; line = script.readLine()){
+            lineNumber++;
+            String[] tokens = line.trim().split("\\s+");
+            if (tokens[0].isEmpty() || tokens[0].startsWith("#")) continue;
+
+            if (tokens.length == 1 && tokens[0].equals("stats")) {
+                report(population);
+            } else if (tokens.length == 2 && tokens[0].equals("run")) {
+                long count = parseCount(tokens[1], 1, lineNumber);
+                runInteractions(population, count, reportInterval, resourceAmount, hawkHawkCost);
+            } else if (tokens.length == 2 && tokens[0].equals("every")) {
+                reportInterval = parseCount(tokens[1], 0, lineNumber);
+            } else {
+                System.err.println("Line " + lineNumber + ": unknown command: " + line);
+                System.exit(1);
+            }
+        }
+        return reportInterval;
+    }
+
+    /**
+     * Read the number a script command takes, or report the line and quit if it isn't a number or is too small.
+     * @param token The number.
+     * @param minimum The smallest number the command takes.
+     * @param lineNumber The line of the script the command is on.
+     * @return The number.
+     */
+    private static long parseCount(String token, long minimum, int lineNumber){
+        long count;
+        try {
+            count = Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            System.err.println("Line " + lineNumber + ": not a number: " + token);
+            System.exit(1);
+            return 0;
+        }
+        if (count < minimum) {
+            System.err.println("Line " + lineNumber + ": must be at least " + minimum + ": " + token);
+            System.exit(1);
+        }
+        return count;
+    }
+
+    /**
+     * Run interactions without reporting on each one, until enough have been run or fewer than two individuals are
+     * left. Nothing is allocated or formatted per interaction; only the aggregate statistics are printed, every so
+     * often.
+     * @param population The population.
+     * @param count The number of interactions to run.
+     * @param reportInterval Print the aggregate statistics whenever the total number of interactions is a multiple of
+     *                       this, or 0 for never.
+     * @param resourceAmount The resources that are at stake for each interaction.
+     * @param hawkHawkCost The cost of two hawks fighting each other.
+     */
+    private static void runInteractions(Population population, long count, long reportInterval,
+                                        int resourceAmount, int hawkHawkCost){
+        int[] payoffs = getPayoffs(resourceAmount, hawkHawkCost);
+        int[] resources = population.resources;
+        byte[] strategies = population.strategies;
+        long[] totals = population.totals;
+
+        for(long i = 0; i < count && population.living >= 2; i++){
+            int individual1Index = random.nextInt(population.living);
+            int individual2Index = random.nextInt(population.living - 1);
+            if (individual2Index >= individual1Index) individual2Index++;
+
+            int pair = strategies[individual1Index] << 1 | strategies[individual2Index];
+            resources[individual1Index] += payoffs[2 * pair];
+            resources[individual2Index] += payoffs[2 * pair + 1];
+            totals[strategies[individual1Index]] += payoffs[2 * pair];
+            totals[strategies[individual2Index]] += payoffs[2 * pair + 1];
+            if (resources[individual1Index] < 0 || resources[individual2Index] < 0) {
+                bury(population, individual1Index, individual2Index);
+            }
+
+            interactionCount++;
+            if (reportInterval > 0 && interactionCount % reportInterval == 0) {
+                report(population);
+            }
+        }
+    }
+
+    /**
+     * Work out what each individual gets out of every kind of interaction.
+     * @param resourceAmount The resources that are at stake for each interaction.
+     * @param hawkHawkCost The cost of two hawks fighting each other.
+     * @return The change in resources of the first and of the second individual, at {@code 2 * pair} and
+     * {@code 2 * pair + 1}, where pair is the ordinal of the first one's strategy times two plus the second one's.
+     */
+    private static int[] getPayoffs(int resourceAmount, int hawkHawkCost){
+        int[] payoffs = new int[8];
+        int dove = Population.Strategy.DOVE.ordinal();
+        int hawk = Population.Strategy.HAWK.ordinal();
+
+        payoffs[2 * (dove << 1 | dove)] = resourceAmount / 2;
+        payoffs[2 * (dove << 1 | dove) + 1] = resourceAmount / 2;
+        payoffs[2 * (hawk << 1 | dove)] = resourceAmount;
+        payoffs[2 * (dove << 1 | hawk) + 1] = resourceAmount;
+        payoffs[2 * (hawk << 1 | hawk)] = resourceAmount - hawkHawkCost;
+        payoffs[2 * (hawk << 1 | hawk) + 1] = -hawkHawkCost;
+        return payoffs;
+    }
+
+    /**
+     * Remove whichever of two individuals that just interacted have died. The higher slot goes first, so that the
+     * swap can't move the other one if both died.
+     */
+    private static void bury(Population population, int individual1Index, int individual2Index){
+        int high = Math.max(individual1Index, individual2Index);
+        int low = Math.min(individual1Index, individual2Index);
+        if (population.resources[high] < 0) population.kill(high);
+        if (population.resources[low] < 0) population.kill(low);
+    }
+
+    /**
+     * Print the aggregate statistics of the population so far, noting when they were printed.
+     * @param population The population.
+     */
+    private static void report(Population population){
+        System.out.println(getAggregateStats(population));
+        reportedAt = interactionCount;
+    }
+
+    /**
+     * Get the aggregate statistics of the population so far, from the running counts and totals the population keeps.
+     * @param population The population.
+     * @return A formatted line of the statistics.
+     */
+    private static String getAggregateStats(Population population){
+        long[] counts = population.counts;
+        long[] totals = population.totals;
+        int dove = Population.Strategy.DOVE.ordinal();
+        int hawk = Population.Strategy.HAWK.ordinal();
+
+        return String.format(AGGREGATE_STATS, interactionCount, counts[hawk], counts[dove],
+            population.size() - population.living,
+            counts[hawk] == 0 ? 0.0 : (double) totals[hawk] / counts[hawk],
+            counts[dove] == 0 ? 0.0 : (double) totals[dove] / counts[dove]);
+    }
+
     /**
      * Print out the starting statistics of the simulation.
      * @param populationSize The population size.
@@ -148,94 +370,86 @@ public class ESS {
 
     /**
      * Gets details about the population.
-     * @param population The list of all of the population members.
-     * @return A formatted string of the population details.
+     * @param population The population, living and dead.
+     * @return A formatted string of the population details, in the order the individuals were created.
      */
-    private static String getPopulationDetails(List<Individual> population){
+    private static String getPopulationDetails(Population population){
         StringJoiner sj = new StringJoiner("", "", "");
-        int livingCount = population.size();
-
-        for(int i = 0; i < population.size(); i++){
-            Individual individual = population.get(i);
-            String strategy = individual.strategy.name;
 
-            if (individual.resources < 0) {
-                strategy = "DEAD";
-                livingCount--;
-            }
+        for(int id = 0; id < population.size(); id++){
+            int slot = population.slotOf(id);
+            String strategy = slot < population.living ? population.strategyOf(slot).name : "DEAD";
 
             sj.add("Individual[")
-                .add(String.valueOf(i))
+                .add(String.valueOf(id))
                 .add("]=")
                 .add(strategy)
                 .add(":")
-                .add(String.valueOf(individual.resources))
+                .add(String.valueOf(population.resources[slot]))
                 .add("\n");
         }
 
-        sj.add("Living: ").add(String.valueOf(livingCount));
+        sj.add("Living: ").add(String.valueOf(population.living));
 
         return sj.toString();
     }
 
     /**
      * Get a shorter, sorted summary of the population.
-     * @param population The list of all of the population members.
+     * @param population The population, living and dead.
      * @return The formatted string of the sorted summary of the population.
      */
-    private static String getPopulationSummary(List<Individual> population){
+    private static String getPopulationSummary(Population population){
         StringJoiner sj = new StringJoiner("", "", "");
-        population.sort((a, b) -> Integer.compare(b.resources, a.resources));
 
-        for(Individual individual: population){
-            String strategy = individual.strategy.name;
-            if (individual.resources < 0) {
-                strategy = "DEAD";
-            }
-            sj.add(strategy).add(":").add(String.valueOf(individual.resources)).add("\n");
+        // Sort the negated resources with the id packed in below them, so the sort is on primitives and
+        // ties come out by ascending id however the slots have been shuffled by deaths.
+        long[] order = new long[population.size()];
+        for(int slot = 0; slot < order.length; slot++){
+            order[slot] = -(long) population.resources[slot] << 32 | population.idOf(slot);
+        }
+        Arrays.sort(order);
+
+        for(long key: order){
+            int slot = population.slotOf((int) key);
+            String strategy = slot < population.living ? population.strategyOf(slot).name : "DEAD";
+            sj.add(strategy).add(":").add(String.valueOf(population.resources[slot])).add("\n");
         }
 
         return sj.toString();
     }
 
     /**
-     * Run a single interaction. Selects two individuals from the population to participate in the interaction.
-     * @param population The list of alive members of the population.
+     * Run a single interaction. Selects two living individuals from the population to participate in the interaction.
+     * @param population The population.
      * @param resourceAmount The amount of resource that is being contended for.
      * @param hawkHawkCost The cost dealt to the hawks when two hawks fight each other.
      * @return A formatted string of the results of the interaction.
      */
-    private static String runInteraction(List<Individual> population, int resourceAmount, int hawkHawkCost){
-        Random random = new Random();
-        int individual1Index = random.nextInt(population.size());
-        int individual2Index = random.nextInt(population.size() - 1);
+    private static String runInteraction(Population population, int resourceAmount, int hawkHawkCost){
+        int individual1Index = random.nextInt(population.living);
+        int individual2Index = random.nextInt(population.living - 1);
 
-        if (individual2Index == individual1Index){
+        if (individual2Index >= individual1Index){
             individual2Index += 1;
         }
 
-        Individual individual1 = population.get(individual1Index);
-        Individual individual2 = population.get(individual2Index);
-
-        int individual1ResourceChange = 0;
-        int individual2ResourceChange = 0;
+        Population.Strategy individual1Strategy = population.strategyOf(individual1Index);
+        Population.Strategy individual2Strategy = population.strategyOf(individual2Index);
 
-        if (individual1.strategy == Individual.Strategy.DOVE && individual2.strategy == Individual.Strategy.DOVE) {
-            individual1ResourceChange += resourceAmount / 2;
-            individual2ResourceChange += resourceAmount / 2;
-        } else if (individual1.strategy == Individual.Strategy.HAWK && individual2.strategy == Individual.Strategy.DOVE) {
-            individual1ResourceChange += resourceAmount;
-        } else if (individual2.strategy == Individual.Strategy.HAWK && individual1.strategy == Individual.Strategy.DOVE) {
-            individual2ResourceChange += resourceAmount;
-        } else if (individual1.strategy == Individual.Strategy.HAWK && individual2.strategy == Individual.Strategy.HAWK) {
-            individual1ResourceChange += resourceAmount;
+        int[] payoffs = getPayoffs(resourceAmount, hawkHawkCost);
+        int pair = individual1Strategy.ordinal() << 1 | individual2Strategy.ordinal();
+        int individual1ResourceChange = payoffs[2 * pair];
+        int individual2ResourceChange = payoffs[2 * pair + 1];
 
-            individual1ResourceChange -= hawkHawkCost;
-            individual2ResourceChange -= hawkHawkCost;
-        }
+        int individual1Resources = population.resources[individual1Index] += individual1ResourceChange;
+        int individual2Resources = population.resources[individual2Index] += individual2ResourceChange;
+        population.totals[individual1Strategy.ordinal()] += individual1ResourceChange;
+        population.totals[individual2Strategy.ordinal()] += individual2ResourceChange;
 
-        individual1.resources += individual1ResourceChange;
-        individual2.resources += individual2ResourceChange;
+        // Report the ids the individuals were created with; their slots change as others die.
+        int individual1Id = population.idOf(individual1Index);
+        int individual2Id = population.idOf(individual2Index);
 
         String output1 =
             "Encounter: %d%n" +
@@ -250,36 +464,118 @@ public class ESS {
 
         StringJoiner sj = new StringJoiner("\n", "", "");
         sj.add(output1);
-        if (individual1.resources < 0){
-            sj.add(String.format(output2, individual1.strategy.name));
-            population.remove(individual1Index);
+        if (individual1Resources < 0){
+            sj.add(String.format(output2, individual1Strategy.name));
         }
-        if (individual2.resources < 0) {
-            sj.add(String.format(output3, individual2.strategy.name));
-            population.remove(individual1Index);
+        if (individual2Resources < 0) {
+            sj.add(String.format(output3, individual2Strategy.name));
         }
         sj.add(output4);
 
+        bury(population, individual1Index, individual2Index);
+
         interactionCount++;
 
         return String.format(sj.toString(),
-            interactionCount, individual1Index, individual1.strategy.name, individual2Index, individual2.strategy.name,
-            individual1ResourceChange, individual2ResourceChange, individual1.resources, individual2.resources
+            interactionCount, individual1Id, individual1Strategy.name, individual2Id, individual2Strategy.name,
+            individual1ResourceChange, individual2ResourceChange, individual1Resources, individual2Resources
         );
     }
 
 }
 
 /**
- * Small class to represent an individual in the population.
+ * The population, stored as parallel primitive arrays indexed by slot instead of as an object per individual. The
+ * living individuals are in slots 0 to {@code living - 1}; when one dies it is swapped with the last living one, so a
+ * death is O(1) and the dead collect at the end with their final resources. Every individual keeps the id it was
+ * created with, and {@link #slotOf} finds where it is now.
  */
-class Individual {
-    int resources;
-    Strategy strategy;
+class Population {
+    final int[] resources;
+    final byte[] strategies;
+
+    /**
+     * The number of living individuals with each strategy, and their resources put together, indexed by the
+     * strategy's ordinal. Whoever changes a living individual's resources adds the change to its strategy's total.
+     */
+    final long[] counts = new long[STRATEGIES.length];
+    final long[] totals = new long[STRATEGIES.length];
+
+    private final int[] ids;
+    private final int[] slots;
+    int living;
+
+    private static final Strategy[] STRATEGIES = Strategy.values();
+
+    /**
+     * Create a population where nobody has any resources yet.
+     * @param hawks The number of hawks, which get the first ids.
+     * @param doves The number of doves.
+     */
+    Population(int hawks, int doves){
+        int size = hawks + doves;
+        this.resources = new int[size];
+        this.strategies = new byte[size];
+        this.ids = new int[size];
+        this.slots = new int[size];
+        for(int i = 0; i < size; i++){
+            this.strategies[i] = (byte) (i < hawks ? Strategy.HAWK : Strategy.DOVE).ordinal();
+            this.ids[i] = i;
+            this.slots[i] = i;
+            this.counts[this.strategies[i]]++;
+        }
+        this.living = size;
+    }
+
+    /**
+     * @return The number of individuals, living and dead.
+     */
+    int size(){
+        return this.resources.length;
+    }
 
-    Individual(Strategy strategy){
-        this.strategy = strategy;
-        this.resources = 0;
+    Strategy strategyOf(int slot){
+        return STRATEGIES[this.strategies[slot]];
+    }
+
+    /**
+     * @param slot A slot.
+     * @return The id the individual in it was created with.
+     */
+    int idOf(int slot){
+        return this.ids[slot];
+    }
+
+    /**
+     * Find where an individual is now.
+     * @param id The id the individual was created with.
+     * @return Its slot.
+     */
+    int slotOf(int id){
+        return this.slots[id];
+    }
+
+    /**
+     * Move a living individual out of the living slots, by swapping it with the last living one.
+     * @param slot The slot of the individual.
+     */
+    void kill(int slot){
+        int last = --this.living;
+        int resources = this.resources[slot];
+        byte strategy = this.strategies[slot];
+        int id = this.ids[slot];
+        this.counts[strategy]--;
+        this.totals[strategy] -= resources;
+
+        this.resources[slot] = this.resources[last];
+        this.strategies[slot] = this.strategies[last];
+        this.ids[slot] = this.ids[last];
+        this.slots[this.ids[slot]] = slot;
+
+        this.resources[last] = resources;
+        this.strategies[last] = strategy;
+        this.ids[last] = id;
+        this.slots[id] = last;
     }
 
     enum Strategy {